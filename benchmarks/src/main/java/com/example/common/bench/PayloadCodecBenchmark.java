@@ -0,0 +1,168 @@
+package com.example.common.bench;
+
+import com.example.common.spool.Payload;
+import com.example.common.spool.PayloadView;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode cost of the spool meta codecs across realistic header shapes.
+ *
+ * Reports throughput (ops/us) and average time; with BenchmarkMain the gc profiler adds
+ * gc.alloc.rate.norm = bytes allocated per op.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class PayloadCodecBenchmark {
+
+    public enum Shape {
+        /** A handful of short headers, e.g. a health-check style POST. */
+        FEW_SMALL,
+        /** ~40 headers with long values (signatures, trace ids, cookies). */
+        MANY_LARGE,
+        /** Repeated header names with several values each (x-forwarded-for chains, accept lists). */
+        MULTI_VALUED,
+        /** UTF-8 heavy path/query/header values. */
+        NON_ASCII
+    }
+
+    @Param
+    public Shape shape;
+
+    private static final byte[] IP = {(byte) 203, 0, 113, 17};
+
+    private HttpHeaders headers;
+    private String path;
+    private String query;
+
+    private ByteBuffer v1;
+    private ByteBuffer v2;
+    private ByteBuffer v3;
+
+    private ByteBuffer directOut;
+    private final PayloadView view = new PayloadView();
+
+    @Setup
+    public void setup() {
+        headers = new HttpHeaders();
+        path = "/webhooks/stripe";
+        query = "";
+
+        switch (shape) {
+            case FEW_SMALL -> {
+                headers.add("Content-Type", "application/json");
+                headers.add("User-Agent", "curl/8.5.0");
+                headers.add("Accept", "*/*");
+                headers.add("Content-Length", "42");
+            }
+            case MANY_LARGE -> {
+                headers.add("Content-Type", "application/json; charset=utf-8");
+                headers.add("User-Agent", "Stripe/1.0 (+https://stripe.com/docs/webhooks)");
+                headers.add("Stripe-Signature", "t=1700000000,v1=" + "5257a869e7ecebeda32affa62cdca3fa51cad7e77a0e56ff536d0ce8e108d8bd" + ",v0=" + "6ffbb59b2300aae63f272406069a9788598b792a944a07aba816edb039989a39");
+                headers.add("Traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+                headers.add("Cookie", "session=" + "a".repeat(400) + "; theme=dark; consent=" + "b".repeat(120));
+                headers.add("Authorization", "Bearer " + "eyJhbGciOiJIUzI1NiJ9." + "c".repeat(600));
+                for (int i = 0; i < 34; i++) {
+                    headers.add("X-Vendor-Header-" + i, "value-" + i + "-" + "d".repeat(40 + i));
+                }
+                query = "delivery=" + "e".repeat(64) + "&attempt=3";
+            }
+            case MULTI_VALUED -> {
+                headers.add("Content-Type", "application/json");
+                for (int i = 0; i < 8; i++) headers.add("X-Forwarded-For", "10.0." + i + "." + (i * 7));
+                for (int i = 0; i < 6; i++) headers.add("Accept", "application/vnd.example.v" + i + "+json");
+                for (int i = 0; i < 4; i++) headers.add("Via", "1.1 proxy-" + i + ".example.net");
+                headers.add("Set-Cookie", "a=1");
+                headers.add("Set-Cookie", "b=2");
+            }
+            case NON_ASCII -> {
+                headers.add("Content-Type", "application/json; charset=utf-8");
+                headers.add("X-Customer-Name", "Jürgen Müller-Lüdenscheidt");
+                headers.add("X-Customer-City", "Rīga, Latvija — Ķīpsala");
+                headers.add("X-Note", "注文を受け付けました。ありがとうございます 🎉");
+                headers.add("X-Greek", "Καλημέρα κόσμε");
+                path = "/webhooks/bestellungen/größe";
+                query = "name=%C3%BC&q=Ωmega";
+            }
+        }
+
+        v1 = Payload.PayloadV1.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+        v2 = Payload.PayloadV2.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+        v3 = Payload.PayloadV3.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+
+        directOut = ByteBuffer.allocateDirect(64 * 1024);
+    }
+
+    // ----------------------------- encode -----------------------------
+
+    @Benchmark
+    public ByteBuffer v1EncodeMeta() {
+        return Payload.PayloadV1.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+    }
+
+    @Benchmark
+    public ByteBuffer v2EncodeMeta() {
+        return Payload.PayloadV2.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+    }
+
+    @Benchmark
+    public int v2EncodeMetaIntoDirectBuffer() {
+        directOut.clear();
+        return Payload.PayloadV2.encodeMeta(directOut, "POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+    }
+
+    @Benchmark
+    public ByteBuffer v3EncodeMeta() {
+        return Payload.PayloadV3.encodeMeta("POST", "https", IP, "hooks.example.com", path, query, "machine-1", headers, "198.51.100.7", 1234);
+    }
+
+    // ----------------------------- decode -----------------------------
+
+    @Benchmark
+    public Map<String, Object> v1DecodeMeta() throws IOException {
+        return Payload.PayloadV1.decodeMeta(v1);
+    }
+
+    @Benchmark
+    public Payload.DecodedMeta v1DecodeMetaWithSize() throws IOException {
+        return Payload.PayloadV1.decodeMetaWithSize(v1);
+    }
+
+    @Benchmark
+    public Map<String, Object> v2DecodeMeta() throws IOException {
+        return Payload.PayloadV2.decodeMeta(v2);
+    }
+
+    @Benchmark
+    public Payload.DecodedMeta v2DecodeMetaWithSize() throws IOException {
+        return Payload.PayloadV2.decodeMetaWithSize(v2);
+    }
+
+    @Benchmark
+    public Map<String, Object> v3DecodeMeta() throws IOException {
+        return Payload.PayloadV3.decodeMeta(v3);
+    }
+
+    /** Typical consumer that only needs host and body length. */
+    @Benchmark
+    public void v2ViewHostAndBodyLen(Blackhole bh) throws IOException {
+        view.reset(v2);
+        bh.consume(view.host());
+        bh.consume(view.bodyLen());
+    }
+
+    @Benchmark
+    public String v2ViewSingleHeader() throws IOException {
+        return view.reset(v2).header("content-type");
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.common.config;
+
+public interface ArchiveProps {
+    String bucket();
+
+    /** Key prefix for archived segments, e.g. "spool/app-name/". */
+    String prefix();
+
+    /** Endpoint override for S3-compatible stores (MinIO, LocalStack); empty for AWS. */
+    String endpoint();
+
+    String region();
+
+    /** Static credentials; when empty the default AWS credentials chain is used. */
+    String accessKey();
+
+    String secretKey();
+
+    /** Path-style addressing, needed by most local S3 stand-ins. */
+    boolean pathStyle();
+
+    /** Multipart part size in bytes (S3 minimum is 5 MiB). */
+    long partBytes();
+
+    /** Max parts uploaded in parallel. */
+    int concurrency();
+
+    /** How often sealed segments are looked for. */
+    long intervalMs();
+}
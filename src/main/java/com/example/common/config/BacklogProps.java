@@ -0,0 +1,6 @@
+package com.example.common.config;
+
+public interface BacklogProps {
+    /** How often the app master replaces the maintained backlog counter by a real count of NEW events. */
+    long reconcileIntervalMs();
+}
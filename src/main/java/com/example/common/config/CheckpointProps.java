@@ -0,0 +1,9 @@
+package com.example.common.config;
+
+public interface CheckpointProps {
+    /** Write pending checkpoints once this many commits have accumulated. */
+    int maxPendingCommits();
+
+    /** Upper bound on how long a commit stays in memory before it is written. */
+    long maxDelayMs();
+}
@@ -0,0 +1,13 @@
+package com.example.common.config;
+
+public interface DedupProps {
+    /**
+     * Width of the fixed window buckets (aligned to the epoch): an event is a duplicate of one with the
+     * same hash received in the same bucket, so two events less than windowMs apart can still fall in
+     * neighbouring buckets and both count as new.
+     */
+    long windowMs();
+
+    /** Recently recorded dedup keys kept to answer duplicates without Mongo. */
+    int recentEntries();
+}
@@ -0,0 +1,18 @@
+package com.example.common.config;
+
+public interface EventWriterProps {
+    /** Lower bound of the adaptive batch size. */
+    int minBatch();
+
+    /** Upper bound of the adaptive batch size. */
+    int maxBatch();
+
+    /** How long a partial batch waits for more documents while other writes are in flight. */
+    long maxWaitMs();
+
+    /** Bulk writes in flight at once. */
+    int maxInflight();
+
+    /** Bulk write latency above which the batch size is halved. */
+    long targetLatencyMs();
+}
@@ -0,0 +1,21 @@
+package com.example.common.config;
+
+public interface MaterializerProps {
+    /** Consumer name; checkpoints are stored per consumer and partition. */
+    String consumer();
+
+    /** Number of parallel partitions (records are routed by machine, falling back to host). */
+    int partitions();
+
+    /** Max EventDocs per bulk upsert. */
+    int batchSize();
+
+    /** Max time a partition waits to fill a batch before writing what it has. */
+    long batchWaitMs();
+
+    /** How often the spool is polled for new records once the materializer has caught up. */
+    long pollIntervalMs();
+
+    /** How often the checkpoints of idle partitions are advanced to the reader position. */
+    long checkpointIntervalMs();
+}
@@ -0,0 +1,26 @@
+package com.example.common.config;
+
+import java.util.List;
+
+public interface RetentionProps {
+    /** Consumers whose checkpoints gate deletion; a segment is kept until all of them are past it. */
+    List<String> consumers();
+
+    /** Consumed segments are kept this long after they were sealed (e.g. the events TTL, for replays). */
+    long retainMs();
+
+    /** Consumed segments are deleted earlier, oldest first, while the spool is larger than this (0 = no limit). */
+    long maxBytes();
+
+    /** Only delete segments SpoolArchiver has uploaded (when archiving to S3 is enabled). */
+    boolean requireArchived();
+
+    /**
+     * Events may reference their bodies in the spool (SpoolMaterializer.newEvents with inlineMaxBytes):
+     * then segments that are not archived are never deleted, whatever their age or the spool size.
+     */
+    boolean payloadRefs();
+
+    /** How often the retention pass runs. */
+    long intervalMs();
+}
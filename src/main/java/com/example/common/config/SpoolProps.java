@@ -0,0 +1,25 @@
+package com.example.common.config;
+
+public interface SpoolProps {
+    /** Directory holding the segment files (e.g. the Fly volume mount). */
+    String dir();
+
+    /** Size of every memory-mapped segment file in bytes; at most 2 GiB - 1 (one MappedByteBuffer). */
+    long segmentBytes();
+
+    /** A sparse index entry is kept for every Nth record of a segment (lookups scan at most N-1 frames). */
+    int indexInterval();
+
+    /** How far ahead of a streaming reader segment pages are faulted in (0 disables read-ahead). */
+    int readAheadBytes();
+
+    GroupCommit groupCommit();
+
+    interface GroupCommit {
+        /** Force as soon as this many bytes are waiting for durability. */
+        long maxBatchBytes();
+
+        /** Upper bound on how long an append waits for the next force. */
+        long maxWaitMs();
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.common.config;
+
+public interface TieredProps {
+    /** Local directory for chunks fetched from archived segments. */
+    String cacheDir();
+
+    /** Size bound of the chunk cache; least recently used chunks are evicted beyond it. */
+    long cacheBytes();
+
+    /** Size of one ranged GET / cached chunk. */
+    int chunkBytes();
+
+    /** Max ranged GETs in flight, and how many chunks a sequential read fetches ahead. */
+    int fetchConcurrency();
+}
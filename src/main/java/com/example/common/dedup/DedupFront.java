@@ -0,0 +1,43 @@
+package com.example.common.dedup;
+
+import com.example.common.config.DedupProps;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory front of the dedup collection: an access-ordered LRU of the recently recorded dedup keys
+ * (hash and window bucket, see DedupDoc.bucketed). A key found here is a duplicate without asking Mongo;
+ * anything else has to be inserted anyway, so the front has no "new" answer to give.
+ *
+ * The front only knows the keys recorded in this process, which is enough for it to be right: a key it
+ * holds has a document in the collection. Memory is bounded by recentEntries. Thread-safe.
+ */
+public final class DedupFront {
+    private final LinkedHashMap<String, Boolean> recent;
+
+    public DedupFront(DedupProps props) {
+        if (props.recentEntries() <= 0) throw new IllegalArgumentException("recentEntries must be > 0: " + props.recentEntries());
+        int max = props.recentEntries();
+        this.recent = new LinkedHashMap<>(Math.min(max, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * True if key was recorded recently, i.e. its event is a duplicate.
+     */
+    public synchronized boolean seen(String key) {
+        return recent.get(key) != null;
+    }
+
+    /**
+     * Records that key is now in the dedup collection.
+     */
+    public synchronized void record(String key) {
+        recent.put(key, Boolean.TRUE);
+    }
+}
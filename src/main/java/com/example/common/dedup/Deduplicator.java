@@ -0,0 +1,112 @@
+package com.example.common.dedup;
+
+import com.example.common.config.DedupProps;
+import com.example.common.persistence.dao.DedupRepo;
+import com.example.common.persistence.entity.DedupDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Duplicate detection for incoming events. The check is one write: a DedupDoc keyed by hash and window
+ * bucket is inserted, and the insert is rejected by the _id index if the key exists (so two concurrent
+ * events with the same hash cannot both pass). Duplicates are events with the same hash in the same
+ * window bucket of windowMs.
+ *
+ * DedupFront answers recently seen duplicates in memory, without the write; everything else needs the
+ * insert, which records the key at the same time.
+ *
+ * Counters dedup.checks{answer=front_duplicate|mongo} show how much the front saves.
+ */
+public final class Deduplicator {
+    private final DedupRepo repo;
+    private final DedupFront front;
+    private final long windowMs;
+
+    private final Counter frontDuplicate;
+    private final Counter mongo;
+
+    public Deduplicator(DedupRepo repo, DedupProps props, MeterRegistry registry) {
+        this.repo = Objects.requireNonNull(repo, "repo");
+        this.front = new DedupFront(props);
+        this.windowMs = props.windowMs();
+        this.frontDuplicate = counter(registry, "front_duplicate");
+        this.mongo = counter(registry, "mongo");
+    }
+
+    private static Counter counter(MeterRegistry registry, String answer) {
+        return Counter.builder("dedup.checks")
+                .description("Dedup checks by where they were answered")
+                .tag("answer", answer)
+                .register(registry);
+    }
+
+    /**
+     * True if an event with the same hash was already recorded in receivedAt's window bucket;
+     * otherwise records this one.
+     */
+    public Mono<Boolean> isDuplicate(String hash, Instant receivedAt) {
+        DedupDoc doc = DedupDoc.bucketed(hash, receivedAt, windowMs);
+        // the front is keyed like the collection, so both agree on what a duplicate is
+        if (front.seen(doc.id())) {
+            frontDuplicate.increment();
+            return Mono.just(true);
+        }
+        mongo.increment();
+        return repo.insertIfAbsent(doc)
+                .map(inserted -> {
+                    front.record(doc.id());
+                    return !inserted;
+                });
+    }
+
+    /**
+     * One event of a batch; eventId (may be null) lets a replayed event recognize its own dedup record.
+     */
+    public record Item(String hash, Instant receivedAt, String eventId) {
+    }
+
+    /**
+     * Batch form of isDuplicate() for bulk paths: repeats inside the batch are resolved in memory, the
+     * rest with one insertMany (plus one $in query if some keys existed), whatever the batch size.
+     * The front is only updated, not asked: a replayed batch has to reach its own records to tell
+     * them apart from real duplicates.
+     *
+     * @return per item, in order: true if it is a duplicate
+     */
+    public Mono<List<Boolean>> duplicates(List<Item> items) {
+        List<DedupDoc> docs = new ArrayList<>(items.size());
+        // item -> index into docs, or -1 for a repeat of an earlier item of the batch
+        int[] slot = new int[items.size()];
+        Map<String, Integer> firstById = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            Item it = items.get(i);
+            DedupDoc doc = DedupDoc.bucketed(it.hash(), it.receivedAt(), windowMs, it.eventId());
+            Integer first = firstById.putIfAbsent(doc.id(), docs.size());
+            if (first == null) {
+                slot[i] = docs.size();
+                docs.add(doc);
+            } else {
+                slot[i] = -1;
+            }
+        }
+        mongo.increment(docs.size());
+
+        return repo.insertAllIfAbsent(docs)
+                .map(dup -> {
+                    List<Boolean> out = new ArrayList<>(items.size());
+                    for (int i = 0; i < items.size(); i++) {
+                        out.add(slot[i] < 0 || dup.get(slot[i]));
+                    }
+                    for (DedupDoc d : docs) front.record(d.id());
+                    return out;
+                });
+    }
+}
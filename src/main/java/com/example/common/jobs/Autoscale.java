@@ -39,6 +39,10 @@ public abstract class Autoscale {
         this.appRepo = appRepo;
     }
 
+    /**
+     * Current backlog; called every tick on every machine, so it should be cheap
+     * (e.g. EventBacklog.current() rather than a count over events).
+     */
     public abstract Mono<Long> hasJob();
 
     public void tick() {
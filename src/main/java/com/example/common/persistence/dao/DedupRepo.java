@@ -6,6 +6,6 @@ import reactor.core.publisher.Mono;
 
 import java.time.Instant;
 
-public interface DedupRepo extends ReactiveMongoRepository<DedupDoc, String> {
+public interface DedupRepo extends ReactiveMongoRepository<DedupDoc, String>, DedupRepoCustom {
     Mono<DedupDoc> findFirstByHashAndReceivedAtGreaterThan(String hash, Instant receivedAt);
 }
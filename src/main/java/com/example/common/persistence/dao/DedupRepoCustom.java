@@ -0,0 +1,24 @@
+package com.example.common.persistence.dao;
+
+import com.example.common.persistence.entity.DedupDoc;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+public interface DedupRepoCustom {
+    /**
+     * Inserts doc unless a document with its id exists, in one write.
+     *
+     * @return true if inserted, false if the id was already there (a duplicate)
+     */
+    Mono<Boolean> insertIfAbsent(DedupDoc doc);
+
+    /**
+     * Inserts all docs (ids must be distinct) with one unordered insertMany; ids that already exist are
+     * then resolved with one $in query.
+     *
+     * @return per doc, in order: true if it is a duplicate, i.e. its id existed and was not recorded
+     * by the same eventId
+     */
+    Mono<List<Boolean>> insertAllIfAbsent(List<DedupDoc> docs);
+}
@@ -0,0 +1,80 @@
+package com.example.common.persistence.dao;
+
+import com.example.common.persistence.entity.DedupDoc;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+public class DedupRepoImpl implements DedupRepoCustom {
+    private final ReactiveMongoOperations mongo;
+
+    public DedupRepoImpl(ReactiveMongoOperations mongo) {
+        this.mongo = mongo;
+    }
+
+    @Override
+    public Mono<Boolean> insertIfAbsent(DedupDoc doc) {
+        // the unique _id index makes the insert the existence check
+        return mongo.insert(doc)
+                .thenReturn(true)
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.just(false));
+    }
+
+    @Override
+    public Mono<List<Boolean>> insertAllIfAbsent(List<DedupDoc> docs) {
+        if (docs.isEmpty()) return Mono.just(List.of());
+
+        List<Document> raw = new ArrayList<>(docs.size());
+        for (DedupDoc d : docs) {
+            Document o = new Document();
+            mongo.getConverter().write(d, o);
+            raw.add(o);
+        }
+
+        // unordered: every doc is attempted, and each duplicate key comes back as its own write error
+        return mongo.getCollection(mongo.getCollectionName(DedupDoc.class))
+                .flatMap(c -> Mono.from(c.insertMany(raw, new InsertManyOptions().ordered(false))))
+                .thenReturn(Collections.<Integer>emptyList())
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    List<Integer> conflicts = new ArrayList<>();
+                    for (BulkWriteError err : e.getWriteErrors()) {
+                        if (ErrorCategory.fromErrorCode(err.getCode()) != ErrorCategory.DUPLICATE_KEY) return Mono.error(e);
+                        conflicts.add(err.getIndex());
+                    }
+                    if (e.getWriteConcernError() != null) return Mono.error(e);
+                    return Mono.just(conflicts);
+                })
+                .flatMap(conflicts -> resolve(docs, conflicts));
+    }
+
+    private Mono<List<Boolean>> resolve(List<DedupDoc> docs, List<Integer> conflicts) {
+        List<Boolean> duplicate = new ArrayList<>(Collections.nCopies(docs.size(), false));
+        if (conflicts.isEmpty()) return Mono.just(duplicate);
+
+        List<String> ids = conflicts.stream().map(i -> docs.get(i).id()).toList();
+        return mongo.find(Query.query(Criteria.where("_id").in(ids)), DedupDoc.class)
+                .collect(Collectors.toMap(DedupDoc::id, d -> d))
+                .map(existing -> {
+                    for (int i : conflicts) {
+                        DedupDoc mine = docs.get(i);
+                        DedupDoc theirs = existing.get(mine.id());
+                        boolean replay = theirs != null && mine.eventId() != null && Objects.equals(mine.eventId(), theirs.eventId());
+                        duplicate.set(i, !replay);
+                    }
+                    return duplicate;
+                });
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.common.persistence.dao;
+
+import com.example.common.config.BacklogProps;
+import com.example.common.persistence.entity.EventStatsDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Backlog of NEW events without processingAt, as a counter in one EventStatsDoc instead of a count over
+ * the events collection, so Autoscale.hasJob() implementations read it with one _id lookup.
+ *
+ * Writers keep it current with $inc: added() for events inserted as NEW (the materializer reports its
+ * upserts), and removed() for events that leave the backlog. Nothing in this module claims events, so
+ * whatever does (the event processors that set processingAt or move events off NEW) must call removed()
+ * with the number it claimed; otherwise the counter only grows between reconciles.
+ *
+ * Transitions made by writers that do not report them, and increments racing a reconcile, make it drift;
+ * every reconcileIntervalMs it is replaced by the real count (countNewWithoutProcessingAt), which bounds
+ * the drift in time. Only the app's master (AppDoc.masterMachineId, see SelectMaster) reconciles, so the
+ * count runs on one machine however many have started an EventBacklog.
+ */
+public final class EventBacklog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EventBacklog.class);
+    static final String ID = "backlog";
+
+    private final ReactiveMongoOperations mongo;
+    private final EventRepoCustom events;
+    private final AppRepo apps;
+    private final BacklogProps props;
+    private Disposable running;
+
+    public EventBacklog(ReactiveMongoOperations mongo, EventRepoCustom events, AppRepo apps, BacklogProps props) {
+        this.mongo = Objects.requireNonNull(mongo, "mongo");
+        this.events = Objects.requireNonNull(events, "events");
+        this.apps = Objects.requireNonNull(apps, "apps");
+        this.props = Objects.requireNonNull(props, "props");
+        if (props.reconcileIntervalMs() <= 0) throw new IllegalArgumentException("reconcileIntervalMs must be > 0: " + props.reconcileIntervalMs());
+    }
+
+    public synchronized void start() {
+        if (running != null) return;
+        running = Flux.interval(Duration.ZERO, Duration.ofMillis(props.reconcileIntervalMs()))
+                .onBackpressureDrop()
+                .concatMap(t -> isMaster()
+                        .filter(Boolean::booleanValue)
+                        .flatMap(master -> reconcile())
+                        .onErrorResume(e -> {
+                            log.warn("event backlog: reconcile failed: {}", e.getMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (running != null) running.dispose();
+        running = null;
+    }
+
+    /** Whether this machine holds the master lease; false when FLY_MACHINE_ID is not set. */
+    private Mono<Boolean> isMaster() {
+        String selfId = System.getenv("FLY_MACHINE_ID");
+        if (selfId == null || selfId.isBlank()) return Mono.just(false);
+        return apps.existsByMasterMachineId(selfId).onErrorReturn(false);
+    }
+
+    /**
+     * Current backlog; counted (and stored) if the counter does not exist yet.
+     */
+    public Mono<Long> current() {
+        return mongo.findById(ID, EventStatsDoc.class)
+                .map(d -> Math.max(0L, d.backlog()))
+                .switchIfEmpty(Mono.defer(this::reconcile));
+    }
+
+    /** n events were inserted with status NEW. */
+    public Mono<Void> added(long n) {
+        return inc(n);
+    }
+
+    /**
+     * n NEW events were claimed by processing (got processingAt) or left NEW. To be called by whatever
+     * claims events, with the number it claimed.
+     */
+    public Mono<Void> removed(long n) {
+        return inc(-n);
+    }
+
+    /**
+     * Replaces the counter with a real count.
+     */
+    public Mono<Long> reconcile() {
+        return events.countNewWithoutProcessingAt()
+                .flatMap(count -> {
+                    Instant now = Instant.now();
+                    Update u = new Update()
+                            .set("backlog", count)
+                            .set("reconciledAt", now)
+                            .set("updatedAt", now);
+                    return mongo.upsert(byId(), u, EventStatsDoc.class).thenReturn(count);
+                });
+    }
+
+    private Mono<Void> inc(long delta) {
+        if (delta == 0) return Mono.empty();
+        Update u = new Update()
+                .inc("backlog", delta)
+                .set("updatedAt", Instant.now());
+        return mongo.upsert(byId(), u, EventStatsDoc.class).then();
+    }
+
+    private static Query byId() {
+        return Query.query(Criteria.where("_id").is(ID));
+    }
+}
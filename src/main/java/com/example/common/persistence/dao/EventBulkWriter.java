@@ -0,0 +1,242 @@
+package com.example.common.persistence.dao;
+
+import com.example.common.config.EventWriterProps;
+import com.example.common.persistence.entity.EventDoc;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.Document;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves EventDocs in unordered bulk writes instead of one insert per document.
+ *
+ * save() queues the document; a bulk write goes out right away when nothing is in flight (so a lone
+ * event waits for no one), when batchSize documents are queued, or when the oldest queued document has
+ * waited maxWaitMs. While writes are in flight, documents pile up into the next batch, so batches grow
+ * with the load. The batch size itself adapts to Mongo: halved when a bulk write takes longer than
+ * targetLatencyMs, grown by a quarter after a full batch that was faster.
+ *
+ * Each save() completes when its own document is acknowledged, or fails with its own write error
+ * (DuplicateKeyException, DataIntegrityViolationException); the other documents of the batch are not
+ * affected. Saves replace the document by id like EventRepo.save().
+ */
+public final class EventBulkWriter implements Closeable {
+    private final ReactiveMongoOperations mongo;
+    private final EventWriterProps props;
+    private final long maxWaitMs;
+
+    private final DistributionSummary batchDocs;
+    private final Timer writeTimer;
+
+    // guarded by this
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private int inflight;
+    private int batchSize;
+    private boolean overdue;
+    private Disposable deadline;
+    private boolean closed;
+
+    public EventBulkWriter(ReactiveMongoOperations mongo, EventWriterProps props, MeterRegistry registry) {
+        this.mongo = Objects.requireNonNull(mongo, "mongo");
+        this.props = Objects.requireNonNull(props, "props");
+        if (props.minBatch() <= 0 || props.maxBatch() < props.minBatch()) {
+            throw new IllegalArgumentException("need 0 < minBatch <= maxBatch: " + props.minBatch() + ", " + props.maxBatch());
+        }
+        if (props.maxInflight() <= 0) throw new IllegalArgumentException("maxInflight must be > 0: " + props.maxInflight());
+        this.maxWaitMs = Math.max(0, props.maxWaitMs());
+        this.batchSize = props.minBatch();
+
+        this.batchDocs = DistributionSummary.builder("events.bulk_write.docs")
+                .description("Event documents per bulk write")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.writeTimer = Timer.builder("events.bulk_write")
+                .description("Latency of one bulk write of event documents")
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("events.bulk_write.batch_size", this, EventBulkWriter::currentBatchSize)
+                .description("Current adaptive batch size")
+                .register(registry);
+    }
+
+    /**
+     * Queues doc for the next bulk write; completes with doc once Mongo acknowledged it.
+     */
+    public Mono<EventDoc> save(EventDoc doc) {
+        Objects.requireNonNull(doc, "doc");
+        return Mono.create(sink -> enqueue(new Pending(doc, sink)));
+    }
+
+    /**
+     * Sends what is queued and refuses further saves.
+     */
+    @Override
+    public void close() {
+        List<List<Pending>> rest = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            if (deadline != null) deadline.dispose();
+            deadline = null;
+            while (!queue.isEmpty()) {
+                List<Pending> b = new ArrayList<>(Math.min(queue.size(), batchSize));
+                while (b.size() < batchSize && !queue.isEmpty()) b.add(queue.poll());
+                inflight++;
+                rest.add(b);
+            }
+        }
+        for (List<Pending> b : rest) write(b);
+    }
+
+    synchronized int currentBatchSize() {
+        return batchSize;
+    }
+
+    // ----------------- batching -----------------
+
+    private void enqueue(Pending p) {
+        List<Pending> batch;
+        synchronized (this) {
+            if (closed) {
+                p.sink.error(new IllegalStateException("event bulk writer is closed"));
+                return;
+            }
+            queue.add(p);
+            armDeadline();
+            batch = takeBatch();
+        }
+        if (batch != null) write(batch);
+    }
+
+    private void onDeadline() {
+        List<Pending> batch;
+        synchronized (this) {
+            deadline = null;
+            overdue = true;
+            batch = takeBatch();
+        }
+        if (batch != null) write(batch);
+    }
+
+    /** Next batch to send, or null if it should wait. Caller holds the lock. */
+    private List<Pending> takeBatch() {
+        if (queue.isEmpty() || inflight >= props.maxInflight()) return null;
+        if (inflight > 0 && queue.size() < batchSize && !overdue) return null;
+
+        List<Pending> b = new ArrayList<>(Math.min(queue.size(), batchSize));
+        while (b.size() < batchSize && !queue.isEmpty()) b.add(queue.poll());
+        inflight++;
+        overdue = false;
+        if (deadline != null) {
+            deadline.dispose();
+            deadline = null;
+        }
+        armDeadline();
+        return b;
+    }
+
+    /** Caller holds the lock. */
+    private void armDeadline() {
+        if (deadline == null && !queue.isEmpty()) {
+            deadline = Schedulers.parallel().schedule(this::onDeadline, maxWaitMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void written(int size, long nanos) {
+        List<Pending> next;
+        synchronized (this) {
+            inflight--;
+            if (TimeUnit.NANOSECONDS.toMillis(nanos) > props.targetLatencyMs()) {
+                batchSize = Math.max(props.minBatch(), batchSize / 2);
+            } else if (size >= batchSize) {
+                batchSize = Math.min(props.maxBatch(), batchSize + Math.max(1, batchSize / 4));
+            }
+            next = takeBatch();
+        }
+        if (next != null) write(next);
+    }
+
+    // ----------------- writing -----------------
+
+    private void write(List<Pending> batch) {
+        List<Pending> sent = new ArrayList<>(batch.size());
+        List<ReplaceOneModel<Document>> models = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            try {
+                Document d = new Document();
+                mongo.getConverter().write(p.doc, d);
+                models.add(new ReplaceOneModel<>(Filters.eq("_id", d.get("_id")), d, new ReplaceOptions().upsert(true)));
+                sent.add(p);
+            } catch (RuntimeException e) {
+                p.sink.error(e);
+            }
+        }
+        if (sent.isEmpty()) {
+            written(0, 0);
+            return;
+        }
+
+        long start = System.nanoTime();
+        mongo.getCollection(mongo.getCollectionName(EventDoc.class))
+                .flatMap(c -> Mono.from(c.bulkWrite(models, new BulkWriteOptions().ordered(false))))
+                .subscribe(
+                        res -> done(sent, start, null),
+                        e -> done(sent, start, e)
+                );
+    }
+
+    private void done(List<Pending> sent, long start, Throwable error) {
+        long nanos = System.nanoTime() - start;
+        writeTimer.record(nanos, TimeUnit.NANOSECONDS);
+        batchDocs.record(sent.size());
+
+        if (error == null) {
+            for (Pending p : sent) p.sink.success(p.doc);
+        } else if (error instanceof MongoBulkWriteException e && e.getWriteConcernError() == null) {
+            // unordered: everything without its own write error went through
+            Map<Integer, BulkWriteError> failed = new HashMap<>();
+            for (BulkWriteError err : e.getWriteErrors()) failed.put(err.getIndex(), err);
+            for (int i = 0; i < sent.size(); i++) {
+                Pending p = sent.get(i);
+                BulkWriteError err = failed.get(i);
+                if (err == null) {
+                    p.sink.success(p.doc);
+                } else {
+                    String msg = "write of event " + p.doc.id() + " failed: " + err.getMessage();
+                    p.sink.error(ErrorCategory.fromErrorCode(err.getCode()) == ErrorCategory.DUPLICATE_KEY
+                            ? new DuplicateKeyException(msg)
+                            : new DataIntegrityViolationException(msg));
+                }
+            }
+        } else {
+            for (Pending p : sent) p.sink.error(error);
+        }
+        written(sent.size(), nanos);
+    }
+
+    private record Pending(EventDoc doc, MonoSink<EventDoc> sink) {
+    }
+}
@@ -14,12 +14,10 @@ public class EventRepoImpl implements EventRepoCustom {
 
     @Override
     public Mono<Long> countNewWithoutProcessingAt() {
+        // processingAt: null matches missing too; one equality keeps the query on ix_events_new_unclaimed
         Query q = new Query()
                 .addCriteria(Criteria.where("status").is("NEW"))
-                .addCriteria(new Criteria().orOperator(
-                        Criteria.where("processingAt").exists(false),
-                        Criteria.where("processingAt").is(null)
-                ));
+                .addCriteria(Criteria.where("processingAt").is(null));
         return mongo.count(q, "events");
     }
 }
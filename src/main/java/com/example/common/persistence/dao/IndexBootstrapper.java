@@ -0,0 +1,156 @@
+package com.example.common.persistence.dao;
+
+import com.example.common.persistence.entity.DedupDoc;
+import com.example.common.persistence.entity.EventDoc;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Declares the indexes the hot queries need, at startup, and checks with explain that every hot query
+ * is served by an index; those that would scan the collection are logged and returned.
+ *
+ * - events ix_events_new_unclaimed: {processingAt: 1, receivedAt: 1}, partial on status "NEW". Only NEW
+ *   documents are indexed, so it stays as small as the backlog; unclaimed ones (processingAt missing or
+ *   null) form one key range, which the backlog count and oldest-first claims read in order.
+ *   (A partial filter cannot express "processingAt is missing", hence the key.)
+ * - events ix_events_hash: {hash: 1, receivedAt: 1} for lookups by dedup key.
+ * - dedups ix_dedups_hash_receivedAt: {hash: 1, receivedAt: 1}; the old uq_dedups_receivedAt_hash, which
+ *   led with receivedAt, is dropped.
+ *
+ * Creating an index that exists with the same definition is a no-op, so this is safe on every start.
+ */
+public final class IndexBootstrapper {
+    private static final Logger log = LoggerFactory.getLogger(IndexBootstrapper.class);
+
+    private static final String LEGACY_DEDUP_INDEX = "uq_dedups_receivedAt_hash";
+
+    private final ReactiveMongoOperations mongo;
+
+    public IndexBootstrapper(ReactiveMongoOperations mongo) {
+        this.mongo = Objects.requireNonNull(mongo, "mongo");
+    }
+
+    /**
+     * A query the application runs often, with representative values.
+     */
+    public record HotQuery(String name, String collection, Document filter, Document sort) {
+    }
+
+    /**
+     * Ensures the indexes, then verifies the hot queries.
+     *
+     * @return names of hot queries that are not served by an index
+     */
+    public Mono<List<String>> run() {
+        return ensureIndexes().then(verify(hotQueries()));
+    }
+
+    public Mono<Void> ensureIndexes() {
+        String events = mongo.getCollectionName(EventDoc.class);
+        String dedups = mongo.getCollectionName(DedupDoc.class);
+
+        Index newUnclaimed = new Index()
+                .on("processingAt", Sort.Direction.ASC)
+                .on("receivedAt", Sort.Direction.ASC)
+                .named("ix_events_new_unclaimed")
+                .partial(PartialIndexFilter.of(Criteria.where("status").is("NEW")));
+        Index eventHash = new Index()
+                .on("hash", Sort.Direction.ASC)
+                .on("receivedAt", Sort.Direction.ASC)
+                .named("ix_events_hash");
+        Index dedupHash = new Index()
+                .on("hash", Sort.Direction.ASC)
+                .on("receivedAt", Sort.Direction.ASC)
+                .named("ix_dedups_hash_receivedAt");
+
+        return Flux.concat(
+                        mongo.indexOps(events).createIndex(newUnclaimed),
+                        mongo.indexOps(events).createIndex(eventHash),
+                        mongo.indexOps(dedups).createIndex(dedupHash))
+                .doOnNext(name -> log.info("indexes: ensured {}", name))
+                .then(dropLegacy(dedups));
+    }
+
+    /** The hot queries of this application. */
+    public List<HotQuery> hotQueries() {
+        String events = mongo.getCollectionName(EventDoc.class);
+        String dedups = mongo.getCollectionName(DedupDoc.class);
+        Document unclaimed = new Document("status", "NEW").append("processingAt", null);
+        return List.of(
+                new HotQuery("backlog count", events, unclaimed, null),
+                new HotQuery("claim oldest NEW", events, unclaimed, new Document("receivedAt", 1)),
+                new HotQuery("event by hash", events, new Document("hash", "0"), null),
+                new HotQuery("dedup by hash", dedups, new Document("hash", "0")
+                        .append("receivedAt", new Document("$gt", Date.from(Instant.EPOCH))), null)
+        );
+    }
+
+    /**
+     * Explains each query and reports those whose winning plan scans the collection.
+     *
+     * @return names of the uncovered queries
+     */
+    public Mono<List<String>> verify(List<HotQuery> queries) {
+        return Flux.fromIterable(queries)
+                .concatMap(q -> explain(q)
+                        .flatMap(plan -> {
+                            if (usesCollectionScan(plan)) {
+                                log.warn("indexes: hot query '{}' on {} is not covered by an index (COLLSCAN): {}", q.name(), q.collection(), plan.toJson());
+                                return Mono.just(q.name());
+                            }
+                            log.info("indexes: hot query '{}' on {} uses an index", q.name(), q.collection());
+                            return Mono.<String>empty();
+                        }))
+                .collectList();
+    }
+
+    private Mono<Document> explain(HotQuery q) {
+        return mongo.getCollection(q.collection())
+                .flatMap(c -> {
+                    var find = c.find(q.filter());
+                    if (q.sort() != null) find = find.sort(q.sort());
+                    return Mono.from(find.explain(Document.class));
+                })
+                .map(e -> {
+                    Document planner = e.get("queryPlanner", Document.class);
+                    Document winning = planner == null ? null : planner.get("winningPlan", Document.class);
+                    return winning != null ? winning : e;
+                });
+    }
+
+    /** True if some stage of the plan (searched recursively) is a COLLSCAN. */
+    static boolean usesCollectionScan(Object plan) {
+        if (plan instanceof Document d) {
+            if ("COLLSCAN".equals(d.get("stage"))) return true;
+            for (Object v : d.values()) {
+                if (usesCollectionScan(v)) return true;
+            }
+        } else if (plan instanceof List<?> l) {
+            for (Object v : l) {
+                if (usesCollectionScan(v)) return true;
+            }
+        }
+        return false;
+    }
+
+    private Mono<Void> dropLegacy(String dedups) {
+        return mongo.indexOps(dedups).getIndexInfo()
+                .filter(i -> LEGACY_DEDUP_INDEX.equals(i.getName()))
+                .concatMap(i -> mongo.indexOps(dedups).dropIndex(i.getName())
+                        .doOnSuccess(v -> log.info("indexes: dropped {} on {}", i.getName(), dedups)))
+                .then();
+    }
+}
@@ -21,5 +21,8 @@ public record AppDoc(
 
         Instant masterLeaseUntil,
 
-        Instant updatedAt
+        Instant updatedAt,
+
+        // DedupHash name for the app's events; null means sha256
+        String dedupHash
 ) {}
@@ -8,12 +8,17 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
 
+/**
+ * One hash seen in one dedup window bucket.
+ * Dedup is an insert keyed by id = hash + ":" + bucket (see bucketed()): the unique _id index
+ * rejects the second event with the same hash in the same bucket, so no lookup precedes the write.
+ * The (hash, receivedAt) index serves lookups by hash within a time range.
+ */
 @TypeAlias("DedupDoc")
 @Document("dedups")
 @CompoundIndex(
-        name = "uq_dedups_receivedAt_hash",
-        def = "{'receivedAt': 1, 'hash': 1}",
-        unique = true
+        name = "ix_dedups_hash_receivedAt",
+        def = "{'hash': 1, 'receivedAt': 1}"
 )
 public record DedupDoc(
         @Id
@@ -21,6 +26,24 @@ public record DedupDoc(
         Instant receivedAt,
         String hash,
         @Indexed(name = "ttl_expireAt", expireAfter = "PT0S")
-        Instant expireAt
+        Instant expireAt,
+        // EventDoc id of the event that recorded the hash, if known; a replay of it is not its own duplicate
+        String eventId
 ) {
+    /**
+     * Document for hash received at receivedAt, in window buckets of windowMs. It expires once its
+     * bucket is a whole window in the past.
+     */
+    public static DedupDoc bucketed(String hash, Instant receivedAt, long windowMs) {
+        return bucketed(hash, receivedAt, windowMs, null);
+    }
+
+    public static DedupDoc bucketed(String hash, Instant receivedAt, long windowMs, String eventId) {
+        long bucket = Math.floorDiv(receivedAt.toEpochMilli(), windowMs);
+        return new DedupDoc(id(hash, bucket), receivedAt, hash, Instant.ofEpochMilli((bucket + 2) * windowMs), eventId);
+    }
+
+    public static String id(String hash, long bucket) {
+        return hash + ":" + bucket;
+    }
 }
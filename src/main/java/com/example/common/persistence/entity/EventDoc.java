@@ -13,6 +13,7 @@ import java.util.Map;
  * Idempotency:
  * - id is expected to be deterministic (e.g., String.valueOf(spoolStartOffset))
  * - re-processing the same spool record updates the same Mongo document, avoiding duplicates.
+ * Large bodies are kept out of line (payloadRef) so documents stay small; read bodies through SpoolPayloads.
  */
 @TypeAlias("EventDoc")
 @Document("events")
@@ -25,8 +26,16 @@ public record EventDoc(
         Map<String, Object> metadata,
         String hash,
         Boolean duplicate,
+        // body, unless it is stored out of line (then null, see payloadRef)
         byte[] payload,
         @Indexed(name = "ttl_expireAt", expireAfter = "PT0S")
-        Instant expireAt
+        Instant expireAt,
+        // where a large body is stored instead of payload (e.g. "spool:<offset>", see SpoolPayloads); null when inline
+        String payloadRef,
+        // body length in bytes, inline or not
+        Long payloadLength
 ) {
+    public EventDoc withDuplicate(boolean duplicate) {
+        return new EventDoc(id, status, receivedAt, createdAt, metadata, hash, duplicate, payload, expireAt, payloadRef, payloadLength);
+    }
 }
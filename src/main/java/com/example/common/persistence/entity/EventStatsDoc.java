@@ -0,0 +1,23 @@
+package com.example.common.persistence.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Maintained counters over the events collection.
+ * - id "backlog": backlog is the number of NEW events nobody is processing yet, kept with $inc as
+ *   events are inserted and claimed, and reset to a real count at reconciledAt
+ */
+@TypeAlias("EventStatsDoc")
+@Document("event_stats")
+public record EventStatsDoc(
+        @Id
+        String id,
+        long backlog,
+        Instant reconciledAt,
+        Instant updatedAt
+) {
+}
@@ -0,0 +1,28 @@
+package com.example.common.persistence.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Progress of one spool consumer partition.
+ * - id is consumer + "/" + partition
+ * - offset is exclusive: every record of the partition below it has been processed
+ * - partitions is the partition count the offsets were computed with (routing changes with it)
+ */
+@TypeAlias("SpoolCheckpointDoc")
+@Document("spool_checkpoints")
+public record SpoolCheckpointDoc(
+        @Id
+        String id,
+        @Indexed
+        String consumer,
+        int partition,
+        int partitions,
+        long offset,
+        Instant updatedAt
+) {
+}
@@ -0,0 +1,212 @@
+package com.example.common.spool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HKP3 static dictionary (HPACK-style): header names and common header values that are written
+ * as a small index instead of the full string.
+ *
+ * IMPORTANT: this table is part of the on-disk format.
+ * Entries may only be appended at the end; never reorder, change or remove existing entries,
+ * otherwise records already written to segments/Mongo decode to different headers.
+ */
+final class Hkp3StaticTable {
+
+    private Hkp3StaticTable() {}
+
+    static final String[] NAMES = {
+            // generic HTTP
+            "accept",
+            "accept-encoding",
+            "accept-language",
+            "authorization",
+            "cache-control",
+            "connection",
+            "content-encoding",
+            "content-length",
+            "content-type",
+            "cookie",
+            "date",
+            "expect",
+            "host",
+            "origin",
+            "pragma",
+            "referer",
+            "transfer-encoding",
+            "user-agent",
+            "via",
+            // proxies / tracing
+            "x-forwarded-for",
+            "x-forwarded-host",
+            "x-forwarded-port",
+            "x-forwarded-proto",
+            "x-forwarded-ssl",
+            "x-real-ip",
+            "x-request-id",
+            "x-request-start",
+            "x-amzn-trace-id",
+            "traceparent",
+            "tracestate",
+            "fly-client-ip",
+            "fly-forwarded-port",
+            "fly-forwarded-proto",
+            "fly-forwarded-ssl",
+            "fly-region",
+            "fly-request-id",
+            "fly-traceparent",
+            "fly-tracestate",
+            "x-hookdeck-original-ip",
+            // vendor webhook headers
+            "stripe-signature",
+            "x-github-event",
+            "x-github-delivery",
+            "x-github-hook-id",
+            "x-github-hook-installation-target-id",
+            "x-github-hook-installation-target-type",
+            "x-hub-signature",
+            "x-hub-signature-256",
+            "x-gitlab-event",
+            "x-gitlab-token",
+            "x-gitlab-event-uuid",
+            "x-gitlab-instance",
+            "x-event-key",
+            "x-hook-uuid",
+            "x-request-uuid",
+            "x-shopify-topic",
+            "x-shopify-hmac-sha256",
+            "x-shopify-shop-domain",
+            "x-shopify-api-version",
+            "x-shopify-webhook-id",
+            "x-shopify-triggered-at",
+            "x-shopify-event-id",
+            "x-slack-signature",
+            "x-slack-request-timestamp",
+            "x-twilio-signature",
+            "x-twilio-idempotency-token",
+            "svix-id",
+            "svix-timestamp",
+            "svix-signature",
+            "webhook-id",
+            "webhook-timestamp",
+            "webhook-signature",
+            "x-signature",
+            "x-webhook-signature",
+            "x-amz-sns-message-type",
+            "x-amz-sns-message-id",
+            "x-amz-sns-topic-arn",
+            "x-amz-sns-subscription-arn",
+            "idempotency-key",
+    };
+
+    static final String[] VALUES = {
+            "application/json",
+            "application/json; charset=utf-8",
+            "application/json; charset=UTF-8",
+            "application/json;charset=UTF-8",
+            "application/x-www-form-urlencoded",
+            "application/x-www-form-urlencoded; charset=utf-8",
+            "application/xml",
+            "text/xml",
+            "text/plain",
+            "text/plain; charset=utf-8",
+            "text/plain; charset=UTF-8",
+            "*/*",
+            "application/json, */*",
+            "application/json, text/plain, */*",
+            "gzip",
+            "gzip, deflate",
+            "gzip, deflate, br",
+            "gzip, br",
+            "br",
+            "deflate",
+            "identity",
+            "chunked",
+            "keep-alive",
+            "close",
+            "no-cache",
+            "100-continue",
+            "http",
+            "https",
+            "80",
+            "443",
+            "1",
+            "0",
+            "on",
+            "true",
+            "false",
+            "Stripe/1.0 (+https://stripe.com/docs/webhooks)",
+            "Shopify-Captain-Hook",
+            "Slackbot 1.0 (+https://api.slack.com/robots)",
+            "Amazon Simple Notification Service Agent",
+            "Notification",
+            "SubscriptionConfirmation",
+            "push",
+            "pull_request",
+            "issues",
+            "issue_comment",
+            "ping",
+            "Push Hook",
+            "Merge Request Hook",
+    };
+
+    // Open-addressing table over NAMES keyed by an ASCII case-insensitive hash, so the encoder
+    // can look up "Content-Type" without lower-casing (allocating) the header name first.
+    private static final int NAME_SLOTS = Integer.highestOneBit(NAMES.length * 4);
+    private static final short[] NAME_TABLE = new short[NAME_SLOTS]; // index + 1, 0 = empty
+
+    private static final Map<String, Integer> VALUE_INDEX = new HashMap<>(VALUES.length * 2);
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            int slot = lowerHash(NAMES[i]) & (NAME_SLOTS - 1);
+            while (NAME_TABLE[slot] != 0) slot = (slot + 1) & (NAME_SLOTS - 1);
+            NAME_TABLE[slot] = (short) (i + 1);
+        }
+        for (int i = 0; i < VALUES.length; i++) {
+            if (VALUE_INDEX.putIfAbsent(VALUES[i], i) != null) {
+                throw new ExceptionInInitializerError("duplicate HKP3 static value: " + VALUES[i]);
+            }
+        }
+    }
+
+    /**
+     * Index of the header name (ASCII case-insensitive), or -1.
+     */
+    static int nameIndex(String name) {
+        if (name == null || name.isEmpty()) return -1;
+        int slot = lowerHash(name) & (NAME_SLOTS - 1);
+        while (true) {
+            int e = NAME_TABLE[slot];
+            if (e == 0) return -1;
+            String candidate = NAMES[e - 1];
+            if (candidate.length() == name.length() && candidate.regionMatches(true, 0, name, 0, name.length())) {
+                return e - 1;
+            }
+            slot = (slot + 1) & (NAME_SLOTS - 1);
+        }
+    }
+
+    /**
+     * Index of the exact (case-sensitive) header value, or -1.
+     */
+    static int valueIndex(String value) {
+        if (value == null || value.isEmpty()) return -1;
+        Integer i = VALUE_INDEX.get(value);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * String.hashCode() of the ASCII-lower-cased string (spread like HashMap), without the copy.
+     */
+    private static int lowerHash(String s) {
+        int h = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') c = (char) (c + 32);
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+}
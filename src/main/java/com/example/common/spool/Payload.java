@@ -1,11 +1,18 @@
 package com.example.common.spool;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpHeaders;
 
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
@@ -16,6 +23,7 @@ import java.util.*;
  *
  * HKP1 (V1): legacy header encoding without explicit value counts per header name (best-effort decoding).
  * HKP2 (V2): deterministic header encoding with headerCount and valueCount.
+ * HKP3 (V3): HKP2 layout with header names/values optionally replaced by static or segment dictionary indices.
  */
 public final class Payload {
 
@@ -25,10 +33,10 @@ public final class Payload {
 
     // These limits protect against corrupted / malicious segments.
     // Tune as needed based on expected production traffic.
-    private static final int MAX_UTF8_LEN = 128 * 1024;          // 128 KB per string token
-    private static final int MAX_HEADERS_SECTION_LEN = 512 * 1024; // 512 KB for headers blob (V1)
-    private static final int MAX_HEADERS_COUNT = 1024;           // V2 header count
-    private static final int MAX_HEADER_VALUES = 128;            // V2 values per header
+    static final int MAX_UTF8_LEN = 128 * 1024;          // 128 KB per string token
+    static final int MAX_HEADERS_SECTION_LEN = 512 * 1024; // 512 KB for headers blob (V1)
+    static final int MAX_HEADERS_COUNT = 1024;           // V2 header count
+    static final int MAX_HEADER_VALUES = 128;            // V2 values per header
 
     // ----------------------------- V1 -----------------------------
 
@@ -97,7 +105,8 @@ public final class Payload {
 
         /**
          * Decodes meta written by encodeMeta().
-         * Returns a JSON-friendly Map that can be serialized with Jackson.
+         * Returns a JSON-friendly Map that can be serialized with Jackson
+         * (or see PayloadJson to write the JSON directly without the map).
          */
         public static Map<String, Object> decodeMeta(ByteBuffer meta) throws IOException {
             Objects.requireNonNull(meta, "meta");
@@ -418,6 +427,8 @@ public final class Payload {
     public static final class PayloadV2 {
         public static final int MAGIC = 0x484B5032; // 'H''K''P''2'
 
+        private static final String ORIGINAL_IP_HEADER = "x-hookdeck-original-ip";
+
         public static ByteBuffer encodeMeta(
                 String method,
                 String scheme,
@@ -429,11 +440,187 @@ public final class Payload {
                 HttpHeaders headers,
                 String originalIpFinal,
                 long bodyLen
+        ) {
+            int size = encodedMetaSize(remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            ByteBuffer out = ByteBuffer.allocate(size);
+            writeMeta(out, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            out.flip();
+            return out;
+        }
+
+        /**
+         * Writes the same bytes as encodeMeta() straight into dst, starting at dst.position().
+         * dst may be heap or direct (e.g. pooled); its byte order is not used or changed.
+         *
+         * @return number of bytes written; dst.position() is advanced by the same amount
+         * @throws BufferOverflowException if dst.remaining() is smaller than encodedMetaSize() (dst is left untouched)
+         */
+        public static int encodeMeta(
+                ByteBuffer dst,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            Objects.requireNonNull(dst, "dst");
+            int size = encodedMetaSize(remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            if (dst.remaining() < size) throw new BufferOverflowException();
+
+            writeMeta(dst, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            return size;
+        }
+
+        /**
+         * Writes the same bytes as encodeMeta() at dst.writePosition(), growing dst if needed.
+         * When dst exposes a single writable region (default and Netty pooled buffers) nothing is copied.
+         *
+         * @return number of bytes written; dst.writePosition() is advanced by the same amount
+         */
+        public static int encodeMeta(
+                DataBuffer dst,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            Objects.requireNonNull(dst, "dst");
+            int size = encodedMetaSize(remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            dst.ensureWritable(size);
+
+            try (DataBuffer.ByteBufferIterator it = dst.writableByteBuffers()) {
+                if (it.hasNext()) {
+                    ByteBuffer bb = it.next();
+                    if (bb.remaining() >= size) {
+                        writeMeta(bb, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+                        dst.writePosition(dst.writePosition() + size);
+                        return size;
+                    }
+                }
+            }
+
+            // Fragmented (composite) buffer: encode once on heap and copy in.
+            ByteBuffer tmp = ByteBuffer.allocate(size);
+            writeMeta(tmp, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            tmp.flip();
+            dst.write(tmp);
+            return size;
+        }
+
+        /**
+         * Allocates a buffer of exactly encodedMetaSize() bytes from factory (pooled and/or direct,
+         * depending on the factory) and encodes the meta into it.
+         */
+        public static DataBuffer encodeMeta(
+                DataBufferFactory factory,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            Objects.requireNonNull(factory, "factory");
+            int size = encodedMetaSize(remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            DataBuffer buf = factory.allocateBuffer(size);
+            try {
+                encodeMeta(buf, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+                return buf;
+            } catch (RuntimeException e) {
+                DataBufferUtils.release(buf);
+                throw e;
+            }
+        }
+
+        /**
+         * Exact number of bytes encodeMeta() produces for the given arguments.
+         * Also performs all argument validation, so a successful call guarantees the write will not fail.
+         */
+        public static int encodedMetaSize(
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
         ) {
             if (bodyLen < 0) throw new IllegalArgumentException("bodyLen must be >= 0");
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            int size = 4 + 2 + 1 + 1 + 1; // magic, flags, method, scheme, ipLen
+            if (remoteIp != null) {
+                if (remoteIp.length > 255) throw new IllegalArgumentException("remoteIp too long: " + remoteIp.length);
+                size += remoteIp.length;
+            }
+
+            size += varUtf8Size(host);
+            size += varUtf8Size(path);
+            size += varUtf8Size(queryRawNoQuestionMark);
+            size += varUtf8Size(machine);
+
+            // [0] = header count, [1] = bytes
+            int[] acc = new int[2];
+            headers.forEach((name, values) -> {
+                acc[0]++;
+                if (values.size() > MAX_HEADER_VALUES) throw new IllegalArgumentException("too many header values for " + name + ": " + values.size());
+                acc[1] += varAsciiLowerSize(name) + varintSize(values.size());
+                for (String v : values) acc[1] += varUtf8Size(v);
+            });
+            int headerCount = acc[0];
+            int headersBytes = acc[1];
+            if (originalIpFinal != null) {
+                headerCount++;
+                headersBytes += varAsciiLowerSize(ORIGINAL_IP_HEADER) + varintSize(1) + varUtf8Size(originalIpFinal);
+            }
 
+            if (headerCount > MAX_HEADERS_COUNT) throw new IllegalArgumentException("too many headers: " + headerCount);
+
+            size += varintSize(headerCount) + headersBytes;
+            size += varint64Size(bodyLen);
+            return size;
+        }
+
+        /**
+         * Writes an already validated (see encodedMetaSize) meta at out.position().
+         *
+         * Deterministic headers:
+         * varint headerCount
+         * repeat headerCount times:
+         *   varAsciiLower(name)
+         *   varint valueCount
+         *   valueCount * varUtf8(value)
+         *
+         * Note: We also optionally append x-hookdeck-original-ip as an extra header.
+         */
+        private static void writeMeta(
+                ByteBuffer out,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
             writeInt32(out, MAGIC);
             writeInt16(out, 0); // flags
 
@@ -443,9 +630,8 @@ public final class Payload {
             if (remoteIp == null) {
                 writeU8(out, 0);
             } else {
-                if (remoteIp.length > 255) throw new IllegalArgumentException("remoteIp too long: " + remoteIp.length);
                 writeU8(out, remoteIp.length);
-                out.writeBytes(remoteIp);
+                out.put(remoteIp);
             }
 
             writeVarUtf8(out, host);
@@ -453,39 +639,22 @@ public final class Payload {
             writeVarUtf8(out, queryRawNoQuestionMark);
             writeVarUtf8(out, machine);
 
-            // Deterministic headers:
-            // varint headerCount
-            // repeat headerCount times:
-            //   varAsciiLower(name)
-            //   varint valueCount
-            //   valueCount * varUtf8(value)
-            //
-            // Note: We also optionally append x-hookdeck-original-ip as an extra header.
-            List<Map.Entry<String, List<String>>> hs = new ArrayList<>();
+            int[] headerCount = new int[1];
+            headers.forEach((name, values) -> headerCount[0]++);
+            writeVarint(out, headerCount[0] + (originalIpFinal != null ? 1 : 0));
+
             headers.forEach((name, values) -> {
-                String n = (name == null) ? "" : name;
-                List<String> vs = new ArrayList<>(values.size());
-                for (String v : values) vs.add(v == null ? "" : v);
-                hs.add(new AbstractMap.SimpleEntry<>(n, vs));
+                writeVarAsciiLower(out, name);
+                writeVarint(out, values.size());
+                for (String v : values) writeVarUtf8(out, v);
             });
             if (originalIpFinal != null) {
-                hs.add(new AbstractMap.SimpleEntry<>("x-hookdeck-original-ip", List.of(originalIpFinal)));
-            }
-
-            if (hs.size() > MAX_HEADERS_COUNT) throw new IllegalArgumentException("too many headers: " + hs.size());
-
-            writeVarint(out, hs.size());
-            for (Map.Entry<String, List<String>> e : hs) {
-                writeVarAsciiLower(out, e.getKey());
-                List<String> vs = e.getValue();
-                if (vs.size() > MAX_HEADER_VALUES) throw new IllegalArgumentException("too many header values for " + e.getKey() + ": " + vs.size());
-                writeVarint(out, vs.size());
-                for (String v : vs) writeVarUtf8(out, v);
+                writeVarAsciiLower(out, ORIGINAL_IP_HEADER);
+                writeVarint(out, 1);
+                writeVarUtf8(out, originalIpFinal);
             }
 
             writeVarint64(out, bodyLen);
-
-            return ByteBuffer.wrap(out.toByteArray());
         }
 
         public static Map<String, Object> decodeMeta(ByteBuffer meta) throws IOException {
@@ -574,178 +743,1029 @@ public final class Payload {
             return out;
         }
 
-        private static String ipToString(byte[] ipBytes) {
-            try {
-                return InetAddress.getByAddress(ipBytes).getHostAddress();
-            } catch (Exception e) {
-                return null;
-            }
-        }
+        private PayloadV2() {}
+    }
 
-        // ----------------- shared helpers -----------------
+    // ----------------------------- V3 (static + segment dictionary) -----------------------------
 
-        private static byte methodToByte(String m) {
-            if (m == null) return 0;
-            return switch (m) {
-                case "GET" -> 1;
-                case "POST" -> 2;
-                case "PUT" -> 3;
-                case "PATCH" -> 4;
-                case "DELETE" -> 5;
-                case "HEAD" -> 6;
-                case "OPTIONS" -> 7;
-                default -> 0;
-            };
-        }
+    /**
+     * HKP3: same layout as HKP2, except that header names and values may be written as an index
+     * into {@link Hkp3StaticTable} or, when the record has FLAG_SEGMENT_DICT, into the segment's
+     * {@link SegmentDictionary} instead of the full string (HPACK-style, literal fallback).
+     *
+     * Header entry:
+     *   varint nameRef     0 = literal varAsciiLower(name) follows, 1..S = static name, S+1.. = segment name
+     *   varint valueCount
+     *   valueCount * (varint valueRef   0 = literal varUtf8(value) follows, 1..S = static value, S+1.. = segment value)
+     *
+     * decodeMeta() returns the same map shape as HKP2 (with magic "HKP3").
+     */
+    public static final class PayloadV3 {
+        public static final int MAGIC = 0x484B5033; // 'H''K''P''3'
 
-        private static byte schemeToByte(String s) {
-            if (s == null) return 0;
-            return switch (s) {
-                case "http" -> 1;
-                case "https" -> 2;
-                default -> 0;
-            };
-        }
+        /** Record refers to (and extends) the segment dictionary; it can't be decoded without it. */
+        public static final int FLAG_SEGMENT_DICT = 0x0001;
 
-        private static String byteToMethod(int code) {
-            return switch (code) {
-                case 1 -> "GET";
-                case 2 -> "POST";
-                case 3 -> "PUT";
-                case 4 -> "PATCH";
-                case 5 -> "DELETE";
-                case 6 -> "HEAD";
-                case 7 -> "OPTIONS";
-                default -> "";
-            };
+        private static final String ORIGINAL_IP_HEADER = "x-hookdeck-original-ip";
+
+        private static final int STATIC_NAMES = Hkp3StaticTable.NAMES.length;
+        private static final int STATIC_VALUES = Hkp3StaticTable.VALUES.length;
+
+        public static ByteBuffer encodeMeta(
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            return encodeMeta(null, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
         }
 
-        private static String byteToScheme(int code) {
-            return switch (code) {
-                case 1 -> "http";
-                case 2 -> "https";
-                default -> "";
-            };
+        /**
+         * Encodes against a segment dictionary (may be null for a self-contained record).
+         * The dictionary is extended with this record's eligible literals.
+         */
+        public static ByteBuffer encodeMeta(
+                SegmentDictionary dict,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            int size = encodedMetaSize(dict, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            ByteBuffer out = ByteBuffer.allocate(size);
+            writeMeta(out, dict, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            out.flip();
+            return out;
         }
 
-        private static void writeVarUtf8(ByteArrayOutputStream out, String s) {
-            String x = (s == null) ? "" : s;
-            byte[] b = x.getBytes(StandardCharsets.UTF_8);
-            writeVarint(out, b.length);
-            out.writeBytes(b);
+        /**
+         * Writes the meta straight into dst, starting at dst.position(); see PayloadV2.encodeMeta(ByteBuffer, ...).
+         * dict may be null; it is only extended when the write succeeds.
+         *
+         * @return number of bytes written
+         * @throws BufferOverflowException if dst.remaining() is smaller than encodedMetaSize() (dst is left untouched)
+         */
+        public static int encodeMeta(
+                ByteBuffer dst,
+                SegmentDictionary dict,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            Objects.requireNonNull(dst, "dst");
+            int size = encodedMetaSize(dict, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            if (dst.remaining() < size) throw new BufferOverflowException();
+
+            writeMeta(dst, dict, method, scheme, remoteIp, host, path, queryRawNoQuestionMark, machine, headers, originalIpFinal, bodyLen);
+            return size;
         }
 
-        private static void writeVarAsciiLower(ByteArrayOutputStream out, String s) {
-            if (s == null || s.isEmpty()) {
-                writeVarint(out, 0);
-                return;
-            }
+        /**
+         * Exact number of bytes encodeMeta() produces for the given arguments and the current
+         * dictionary state (validates the arguments as well; does not modify dict).
+         */
+        public static int encodedMetaSize(
+                SegmentDictionary dict,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            if (bodyLen < 0) throw new IllegalArgumentException("bodyLen must be >= 0");
 
-            int n = s.length();
-            boolean ascii = true;
-            for (int i = 0; i < n; i++) {
-                if (s.charAt(i) > 0x7F) { ascii = false; break; }
-            }
-            if (!ascii) {
-                writeVarUtf8(out, s.toLowerCase(Locale.ROOT));
-                return;
+            int size = 4 + 2 + 1 + 1 + 1; // magic, flags, method, scheme, ipLen
+            if (remoteIp != null) {
+                if (remoteIp.length > 255) throw new IllegalArgumentException("remoteIp too long: " + remoteIp.length);
+                size += remoteIp.length;
             }
 
-            writeVarint(out, n);
-            for (int i = 0; i < n; i++) {
-                char c = s.charAt(i);
-                if (c >= 'A' && c <= 'Z') c = (char) (c + 32);
-                out.write((byte) c);
+            size += varUtf8Size(host);
+            size += varUtf8Size(path);
+            size += varUtf8Size(queryRawNoQuestionMark);
+            size += varUtf8Size(machine);
+
+            // [0] = header count, [1] = bytes
+            int[] acc = new int[2];
+            headers.forEach((name, values) -> {
+                acc[0]++;
+                if (values.size() > MAX_HEADER_VALUES) throw new IllegalArgumentException("too many header values for " + name + ": " + values.size());
+                acc[1] += nameSize(dict, name) + varintSize(values.size());
+                for (String v : values) acc[1] += valueSize(dict, v);
+            });
+            int headerCount = acc[0];
+            int headersBytes = acc[1];
+            if (originalIpFinal != null) {
+                headerCount++;
+                headersBytes += nameSize(dict, ORIGINAL_IP_HEADER) + varintSize(1) + valueSize(dict, originalIpFinal);
             }
+
+            if (headerCount > MAX_HEADERS_COUNT) throw new IllegalArgumentException("too many headers: " + headerCount);
+
+            size += varintSize(headerCount) + headersBytes;
+            size += varint64Size(bodyLen);
+            return size;
         }
 
-        private static void writeU8(ByteArrayOutputStream out, int v) {
-            out.write(v & 0xFF);
+        public static Map<String, Object> decodeMeta(ByteBuffer meta) throws IOException {
+            return decodeMeta(meta, null);
         }
 
-        private static void writeInt16(ByteArrayOutputStream out, int v) {
-            out.write((v >>> 8) & 0xFF);
-            out.write(v & 0xFF);
+        /**
+         * Decodes a record of a segment written with a dictionary. For sequential scans pass the same
+         * (initially empty) instance for every record in order; it is extended as the encoder's was.
+         */
+        public static Map<String, Object> decodeMeta(ByteBuffer meta, SegmentDictionary dict) throws IOException {
+            Objects.requireNonNull(meta, "meta");
+
+            ByteBuffer b = meta.asReadOnlyBuffer();
+            b.order(ByteOrder.BIG_ENDIAN);
+
+            return decodeMetaInternal(b, dict);
         }
 
-        private static void writeInt32(ByteArrayOutputStream out, int v) {
-            out.write((v >>> 24) & 0xFF);
-            out.write((v >>> 16) & 0xFF);
-            out.write((v >>> 8) & 0xFF);
-            out.write(v & 0xFF);
+        public static DecodedMeta decodeMetaWithSize(ByteBuffer metaAtPosition0) throws IOException {
+            return decodeMetaWithSize(metaAtPosition0, null);
         }
 
-        private static void writeVarint(ByteArrayOutputStream out, int v) {
-            int x = v;
-            while ((x & ~0x7F) != 0) {
-                out.write((x & 0x7F) | 0x80);
-                x >>>= 7;
+        public static DecodedMeta decodeMetaWithSize(ByteBuffer metaAtPosition0, SegmentDictionary dict) throws IOException {
+            Objects.requireNonNull(metaAtPosition0, "metaAtPosition0");
+
+            ByteBuffer b = metaAtPosition0.asReadOnlyBuffer();
+            b.order(ByteOrder.BIG_ENDIAN);
+
+            int start = b.position();
+            Map<String, Object> m = decodeMetaInternal(b, dict);
+            int end = b.position();
+
+            return new DecodedMeta(m, end - start);
+        }
+
+        /**
+         * True if meta is an HKP3 record encoded against a segment dictionary (cheap header peek).
+         */
+        public static boolean usesSegmentDictionary(ByteBuffer meta) {
+            int p = meta.position();
+            return meta.remaining() >= 6
+                   && meta.getInt(p) == MAGIC
+                   && (meta.getShort(p + 4) & FLAG_SEGMENT_DICT) != 0;
+        }
+
+        /**
+         * Feeds one record into dict without building the decoded map; used to rebuild a segment's
+         * dictionary when the segment is opened. Records without FLAG_SEGMENT_DICT are skipped over.
+         *
+         * @return meta size in bytes (where the body starts)
+         */
+        public static int replay(ByteBuffer metaAtPosition0, SegmentDictionary dict) throws IOException {
+            Objects.requireNonNull(metaAtPosition0, "metaAtPosition0");
+            Objects.requireNonNull(dict, "dict");
+
+            ByteBuffer b = metaAtPosition0.asReadOnlyBuffer();
+            b.order(ByteOrder.BIG_ENDIAN);
+
+            int start = b.position();
+            int magic = readInt32(b);
+            if (magic != MAGIC) {
+                throw new IOException("bad meta magic: 0x" + Integer.toHexString(magic));
             }
-            out.write(x);
+            int flags = readInt16(b);
+            SegmentDictionary d = (flags & FLAG_SEGMENT_DICT) != 0 ? dict : null;
+
+            readU8(b); // method
+            readU8(b); // scheme
+            int ipLen = readU8(b);
+            if (b.remaining() < ipLen) throw new EOFException("remoteIp truncated");
+            b.position(b.position() + ipLen);
+            for (int i = 0; i < 4; i++) skipVarUtf8(b); // host, path, query, machine
+
+            try {
+                int headerCount = readHeaderCount(b);
+                for (int i = 0; i < headerCount; i++) {
+                    readName(b, d);
+                    int valueCount = readValueCount(b);
+                    for (int j = 0; j < valueCount; j++) readValue(b, d);
+                }
+                long bodyLen = readVarint64(b);
+                if (bodyLen < 0) throw new IOException("negative bodyLen");
+            } catch (IOException | RuntimeException e) {
+                dict.rollback();
+                throw e;
+            }
+            if (d != null) d.commit();
+
+            return b.position() - start;
         }
 
-        private static void writeVarint64(ByteArrayOutputStream out, long v) {
-            long x = v;
-            while ((x & ~0x7FL) != 0) {
-                out.write((int) (x & 0x7F) | 0x80);
-                x >>>= 7;
+        private static void writeMeta(
+                ByteBuffer out,
+                SegmentDictionary dict,
+                String method,
+                String scheme,
+                byte[] remoteIp,
+                String host,
+                String path,
+                String queryRawNoQuestionMark,
+                String machine,
+                HttpHeaders headers,
+                String originalIpFinal,
+                long bodyLen
+        ) {
+            writeInt32(out, MAGIC);
+            writeInt16(out, dict != null ? FLAG_SEGMENT_DICT : 0); // flags
+
+            writeU8(out, methodToByte(method));
+            writeU8(out, schemeToByte(scheme));
+
+            if (remoteIp == null) {
+                writeU8(out, 0);
+            } else {
+                writeU8(out, remoteIp.length);
+                out.put(remoteIp);
             }
-            out.write((int) x);
+
+            writeVarUtf8(out, host);
+            writeVarUtf8(out, path);
+            writeVarUtf8(out, queryRawNoQuestionMark);
+            writeVarUtf8(out, machine);
+
+            int[] headerCount = new int[1];
+            headers.forEach((name, values) -> headerCount[0]++);
+            writeVarint(out, headerCount[0] + (originalIpFinal != null ? 1 : 0));
+
+            headers.forEach((name, values) -> {
+                writeName(out, dict, name);
+                writeVarint(out, values.size());
+                for (String v : values) writeValue(out, dict, v);
+            });
+            if (originalIpFinal != null) {
+                writeName(out, dict, ORIGINAL_IP_HEADER);
+                writeVarint(out, 1);
+                writeValue(out, dict, originalIpFinal);
+            }
+
+            writeVarint64(out, bodyLen);
+
+            if (dict != null) dict.commit();
         }
 
-        private static int readU8(ByteBuffer b) throws EOFException {
-            if (!b.hasRemaining()) throw new EOFException();
-            return b.get() & 0xFF;
+        private static Map<String, Object> decodeMetaInternal(ByteBuffer b, SegmentDictionary dict) throws IOException {
+            int magic = readInt32(b);
+            if (magic != MAGIC) {
+                throw new IOException("bad meta magic: 0x" + Integer.toHexString(magic));
+            }
+
+            int flags = readInt16(b);
+            SegmentDictionary d = null;
+            if ((flags & FLAG_SEGMENT_DICT) != 0) {
+                if (dict == null) throw new IOException("record refers to a segment dictionary, none given");
+                d = dict;
+            }
+
+            int methodCode = readU8(b);
+            int schemeCode = readU8(b);
+
+            int ipLen = readU8(b);
+            byte[] ip = null;
+            if (ipLen > 0) {
+                if (b.remaining() < ipLen) throw new EOFException("remoteIp truncated");
+                ip = new byte[ipLen];
+                b.get(ip);
+            }
+
+            String host = readVarUtf8(b);
+            String path = readVarUtf8(b);
+            String query = readVarUtf8(b);
+            String machine = readVarUtf8(b);
+
+            Map<String, Object> headers;
+            long bodyLen;
+            try {
+                int headerCount = readHeaderCount(b);
+                headers = new LinkedHashMap<>(headerCount);
+                for (int i = 0; i < headerCount; i++) {
+                    String name = readName(b, d);
+                    int valueCount = readValueCount(b);
+
+                    if (valueCount == 0) {
+                        headers.put(name, "");
+                    } else if (valueCount == 1) {
+                        headers.put(name, readValue(b, d));
+                    } else {
+                        List<String> vs = new ArrayList<>(valueCount);
+                        for (int j = 0; j < valueCount; j++) vs.add(readValue(b, d));
+                        headers.put(name, vs);
+                    }
+                }
+
+                bodyLen = readVarint64(b);
+                if (bodyLen < 0) throw new IOException("negative bodyLen");
+            } catch (IOException | RuntimeException e) {
+                if (d != null) d.rollback();
+                throw e;
+            }
+            if (d != null) d.commit();
+
+            Map<String, Object> out = new LinkedHashMap<>(16);
+            out.put("magic", "HKP3");
+            out.put("flags", flags);
+            out.put("method", byteToMethod(methodCode));
+            out.put("scheme", byteToScheme(schemeCode));
+            out.put("remote_ip", ip == null ? null : ipToString(ip));
+            out.put("host", host);
+            out.put("path", path);
+            out.put("query", query);
+            out.put("machine", machine);
+            out.put("headers", headers);
+            out.put("body_len", bodyLen);
+
+            return out;
         }
 
-        private static int readInt16(ByteBuffer b) throws EOFException {
-            if (b.remaining() < 2) throw new EOFException();
-            return ((b.get() & 0xFF) << 8) | (b.get() & 0xFF);
+        // ----------------- dictionary refs -----------------
+
+        private static void writeName(ByteBuffer out, SegmentDictionary dict, String name) {
+            int idx = Hkp3StaticTable.nameIndex(name);
+            if (idx >= 0) {
+                writeVarint(out, idx + 1);
+                return;
+            }
+            if (dict != null) {
+                String lower = lowerName(name);
+                int d = dict.nameIndex(lower);
+                if (d >= 0) {
+                    writeVarint(out, STATIC_NAMES + d + 1);
+                    return;
+                }
+                dict.stageName(lower);
+            }
+            writeVarint(out, 0);
+            writeVarAsciiLower(out, name);
         }
 
-        private static int readInt32(ByteBuffer b) throws EOFException {
-            if (b.remaining() < 4) throw new EOFException();
-            return ((b.get() & 0xFF) << 24)
-                   | ((b.get() & 0xFF) << 16)
-                   | ((b.get() & 0xFF) << 8)
-                   | (b.get() & 0xFF);
+        private static void writeValue(ByteBuffer out, SegmentDictionary dict, String value) {
+            int idx = Hkp3StaticTable.valueIndex(value);
+            if (idx >= 0) {
+                writeVarint(out, idx + 1);
+                return;
+            }
+            if (dict != null) {
+                String v = value == null ? "" : value;
+                int d = dict.valueIndex(v);
+                if (d >= 0) {
+                    writeVarint(out, STATIC_VALUES + d + 1);
+                    return;
+                }
+                dict.stageValue(v);
+            }
+            writeVarint(out, 0);
+            writeVarUtf8(out, value);
         }
 
-        private static int readVarint(ByteBuffer b) throws EOFException, IOException {
-            int shift = 0;
-            int result = 0;
-            while (shift < 32) {
-                int x = readU8(b);
-                result |= (x & 0x7F) << shift;
-                if ((x & 0x80) == 0) return result;
-                shift += 7;
+        private static int nameSize(SegmentDictionary dict, String name) {
+            int idx = Hkp3StaticTable.nameIndex(name);
+            if (idx >= 0) return varintSize(idx + 1);
+            if (dict != null) {
+                int d = dict.nameIndex(lowerName(name));
+                if (d >= 0) return varintSize(STATIC_NAMES + d + 1);
             }
-            throw new IOException("varint too long");
+            return 1 + varAsciiLowerSize(name);
         }
 
-        private static long readVarint64(ByteBuffer b) throws EOFException, IOException {
-            int shift = 0;
-            long result = 0;
-            while (shift < 64) {
-                int x = readU8(b);
-                result |= (long) (x & 0x7F) << shift;
-                if ((x & 0x80) == 0) return result;
-                shift += 7;
+        private static int valueSize(SegmentDictionary dict, String value) {
+            int idx = Hkp3StaticTable.valueIndex(value);
+            if (idx >= 0) return varintSize(idx + 1);
+            if (dict != null) {
+                int d = dict.valueIndex(value == null ? "" : value);
+                if (d >= 0) return varintSize(STATIC_VALUES + d + 1);
             }
-            throw new IOException("varint64 too long");
+            return 1 + varUtf8Size(value);
         }
 
-        private static String readVarUtf8(ByteBuffer b) throws EOFException, IOException {
+        private static String readName(ByteBuffer b, SegmentDictionary dict) throws IOException {
+            int ref = readVarint(b);
+            if (ref == 0) {
+                String name = readVarUtf8(b);
+                if (dict != null) dict.stageName(name);
+                return name;
+            }
+            if (ref > 0 && ref <= STATIC_NAMES) return Hkp3StaticTable.NAMES[ref - 1];
+            int d = ref - STATIC_NAMES - 1;
+            if (dict == null || d < 0 || d >= dict.nameCount()) throw new IOException("bad name index: " + ref);
+            return dict.name(d);
+        }
+
+        private static String readValue(ByteBuffer b, SegmentDictionary dict) throws IOException {
+            int ref = readVarint(b);
+            if (ref == 0) {
+                String value = readVarUtf8(b);
+                if (dict != null) dict.stageValue(value);
+                return value;
+            }
+            if (ref > 0 && ref <= STATIC_VALUES) return Hkp3StaticTable.VALUES[ref - 1];
+            int d = ref - STATIC_VALUES - 1;
+            if (dict == null || d < 0 || d >= dict.valueCount()) throw new IOException("bad value index: " + ref);
+            return dict.value(d);
+        }
+
+        private static int readHeaderCount(ByteBuffer b) throws IOException {
+            int headerCount = readVarint(b);
+            if (headerCount < 0) throw new IOException("negative headerCount");
+            if (headerCount > MAX_HEADERS_COUNT) throw new IOException("too many headers: " + headerCount);
+            return headerCount;
+        }
+
+        private static int readValueCount(ByteBuffer b) throws IOException {
+            int valueCount = readVarint(b);
+            if (valueCount < 0) throw new IOException("negative valueCount");
+            if (valueCount > MAX_HEADER_VALUES) throw new IOException("too many header values: " + valueCount);
+            return valueCount;
+        }
+
+        private static void skipVarUtf8(ByteBuffer b) throws IOException {
             int len = readVarint(b);
             if (len < 0) throw new IOException("negative utf8 len");
             if (len > MAX_UTF8_LEN) throw new IOException("utf8 token too large: " + len);
             if (b.remaining() < len) throw new EOFException();
-            byte[] data = new byte[len];
-            b.get(data);
-            return new String(data, StandardCharsets.UTF_8);
+            b.position(b.position() + len);
         }
 
-        private PayloadV2() {}
+        /**
+         * Name as stored by writeVarAsciiLower(); returns the same instance when it is already lower-case ASCII.
+         */
+        private static String lowerName(String name) {
+            if (name == null) return "";
+            int n = name.length();
+            for (int i = 0; i < n; i++) {
+                char c = name.charAt(i);
+                if (c > 0x7F || (c >= 'A' && c <= 'Z')) return name.toLowerCase(Locale.ROOT);
+            }
+            return name;
+        }
+
+        private PayloadV3() {}
+    }
+
+    // ----------------------------- JSON streaming -----------------------------
+
+    /**
+     * Writes a meta straight to a Jackson JsonGenerator in one pass, producing the same JSON as
+     * serializing the decodeMeta() map, without building the map (or, for ASCII HKP2 values written to
+     * a byte-backed generator, Strings).
+     *
+     * The meta is fully validated before anything is written, so on IOException the generator is untouched.
+     * HKP1 (no value counts, duplicate names merged by the decoder) and metas with repeated header
+     * names fall back to the map path to keep the output identical.
+     */
+    public static final class PayloadJson {
+
+        /**
+         * @return meta size in bytes (where the body starts)
+         */
+        public static int writeMeta(ByteBuffer meta, JsonGenerator gen) throws IOException {
+            return writeMeta(meta, null, gen);
+        }
+
+        /**
+         * Same as writeMeta(ByteBuffer, JsonGenerator); dict is the segment dictionary of HKP3 records (may be null).
+         */
+        public static int writeMeta(ByteBuffer meta, SegmentDictionary dict, JsonGenerator gen) throws IOException {
+            Objects.requireNonNull(meta, "meta");
+            Objects.requireNonNull(gen, "gen");
+
+            // duplicate() rather than asReadOnlyBuffer(): keeps hasArray() so heap values are copied without a String
+            ByteBuffer b = meta.duplicate();
+            b.order(ByteOrder.BIG_ENDIAN);
+            int start = b.position();
+
+            int magic = peekMagic(b);
+            if (magic == PayloadV1.MAGIC) {
+                writeMap(gen, PayloadV1.decodeMetaInternal(b));
+                return b.position() - start;
+            }
+            if (magic != PayloadV2.MAGIC && magic != PayloadV3.MAGIC) {
+                throw new IOException("bad meta magic: 0x" + Integer.toHexString(magic));
+            }
+            boolean v3 = magic == PayloadV3.MAGIC;
+
+            readInt32(b);
+            int flags = readInt16(b);
+            SegmentDictionary d = null;
+            if (v3 && (flags & PayloadV3.FLAG_SEGMENT_DICT) != 0) {
+                if (dict == null) throw new IOException("record refers to a segment dictionary, none given");
+                d = dict;
+            }
+            int methodCode = readU8(b);
+            int schemeCode = readU8(b);
+
+            int ipLen = readU8(b);
+            byte[] ip = null;
+            if (ipLen > 0) {
+                if (b.remaining() < ipLen) throw new EOFException("remoteIp truncated");
+                ip = new byte[ipLen];
+                b.get(ip);
+            }
+
+            int hostAt = b.position();
+            for (int i = 0; i < 4; i++) PayloadV3.skipVarUtf8(b); // host, path, query, machine
+
+            // Pass 1: validate everything and resolve header names (needed as JSON field names anyway).
+            int headerCount = PayloadV3.readHeaderCount(b);
+            int headersAt = b.position();
+            String[] names = new String[headerCount];
+            long bodyLen;
+            boolean repeatedName = false;
+            try {
+                for (int i = 0; i < headerCount; i++) {
+                    names[i] = v3 ? PayloadV3.readName(b, d) : readVarUtf8(b);
+                    for (int k = 0; k < i && !repeatedName; k++) repeatedName = names[k].equals(names[i]);
+                    int valueCount = PayloadV3.readValueCount(b);
+                    for (int j = 0; j < valueCount; j++) {
+                        if (v3) PayloadV3.readValue(b, d);
+                        else PayloadV3.skipVarUtf8(b);
+                    }
+                }
+                bodyLen = readVarint64(b);
+                if (bodyLen < 0) throw new IOException("negative bodyLen");
+            } finally {
+                // pass 2 (or the fallback) stages the same literals again
+                if (d != null) d.rollback();
+            }
+            int end = b.position();
+
+            if (repeatedName) {
+                // the map keeps the first position and the last value; let the decoder do exactly that
+                b.position(start);
+                writeMap(gen, v3 ? PayloadV3.decodeMetaInternal(b, d) : PayloadV2.decodeMetaInternal(b));
+                return b.position() - start;
+            }
+
+            // Pass 2: write.
+            byte[] scratch = null; // only used for direct buffers
+            gen.writeStartObject();
+            gen.writeStringField("magic", v3 ? "HKP3" : "HKP2");
+            gen.writeNumberField("flags", flags);
+            gen.writeStringField("method", byteToMethod(methodCode));
+            gen.writeStringField("scheme", byteToScheme(schemeCode));
+            gen.writeFieldName("remote_ip");
+            if (ip == null) gen.writeNull();
+            else gen.writeString(ipToString(ip));
+
+            b.position(hostAt);
+            gen.writeFieldName("host");
+            scratch = copyVarUtf8(b, gen, scratch);
+            gen.writeFieldName("path");
+            scratch = copyVarUtf8(b, gen, scratch);
+            gen.writeFieldName("query");
+            scratch = copyVarUtf8(b, gen, scratch);
+            gen.writeFieldName("machine");
+            scratch = copyVarUtf8(b, gen, scratch);
+
+            b.position(headersAt);
+            gen.writeFieldName("headers");
+            gen.writeStartObject();
+            for (int i = 0; i < headerCount; i++) {
+                if (v3) PayloadV3.readName(b, d);
+                else PayloadV3.skipVarUtf8(b);
+                gen.writeFieldName(names[i]);
+
+                int valueCount = readVarint(b);
+                if (valueCount == 0) {
+                    gen.writeString("");
+                } else if (valueCount == 1) {
+                    scratch = copyValue(b, d, v3, gen, scratch);
+                } else {
+                    gen.writeStartArray();
+                    for (int j = 0; j < valueCount; j++) scratch = copyValue(b, d, v3, gen, scratch);
+                    gen.writeEndArray();
+                }
+            }
+            gen.writeEndObject();
+
+            gen.writeNumberField("body_len", bodyLen);
+            gen.writeEndObject();
+
+            if (d != null) d.commit();
+            b.position(end);
+            return end - start;
+        }
+
+        /**
+         * Convenience for WebFlux: writes the JSON of one meta at dst.writePosition().
+         *
+         * @return meta size in bytes (where the body starts)
+         */
+        public static int writeMeta(ByteBuffer meta, SegmentDictionary dict, JsonFactory factory, DataBuffer dst) throws IOException {
+            Objects.requireNonNull(factory, "factory");
+            Objects.requireNonNull(dst, "dst");
+            try (JsonGenerator gen = factory.createGenerator(dst.asOutputStream())) {
+                return writeMeta(meta, dict, gen);
+            }
+        }
+
+        private static byte[] copyValue(ByteBuffer b, SegmentDictionary d, boolean v3, JsonGenerator gen, byte[] scratch) throws IOException {
+            if (v3) {
+                gen.writeString(PayloadV3.readValue(b, d));
+                return scratch;
+            }
+            return copyVarUtf8(b, gen, scratch);
+        }
+
+        /**
+         * Writes a (validated) varUtf8 token as a JSON string. ASCII tokens go to byte-backed generators
+         * as raw bytes, no String in between; anything else is decoded like the map path does (malformed
+         * sequences become U+FFFD), and Writer-backed generators, which cannot take raw UTF-8, always get
+         * a String.
+         *
+         * @return the scratch array to use next time (grown if it was too small)
+         */
+        private static byte[] copyVarUtf8(ByteBuffer b, JsonGenerator gen, byte[] scratch) throws IOException {
+            int len = readVarint(b);
+            byte[] src;
+            int off;
+            if (b.hasArray()) {
+                src = b.array();
+                off = b.arrayOffset() + b.position();
+                b.position(b.position() + len);
+            } else {
+                if (scratch == null || scratch.length < len) scratch = new byte[Math.max(len, 256)];
+                b.get(scratch, 0, len);
+                src = scratch;
+                off = 0;
+            }
+            if (gen instanceof UTF8JsonGenerator && isAscii(src, off, len)) {
+                gen.writeUTF8String(src, off, len);
+            } else {
+                gen.writeString(new String(src, off, len, StandardCharsets.UTF_8));
+            }
+            return scratch;
+        }
+
+        private static boolean isAscii(byte[] src, int off, int len) {
+            for (int i = off, end = off + len; i < end; i++) {
+                if (src[i] < 0) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Writes a decodeMeta() map (String/Number/null/List/Map values) as JSON.
+         */
+        private static void writeMap(JsonGenerator gen, Map<String, ?> m) throws IOException {
+            gen.writeStartObject();
+            for (Map.Entry<String, ?> e : m.entrySet()) {
+                gen.writeFieldName(e.getKey());
+                writeValue(gen, e.getValue());
+            }
+            gen.writeEndObject();
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void writeValue(JsonGenerator gen, Object v) throws IOException {
+            if (v == null) {
+                gen.writeNull();
+            } else if (v instanceof String s) {
+                gen.writeString(s);
+            } else if (v instanceof Integer i) {
+                gen.writeNumber(i);
+            } else if (v instanceof Long l) {
+                gen.writeNumber(l);
+            } else if (v instanceof Map<?, ?> mm) {
+                writeMap(gen, (Map<String, ?>) mm);
+            } else if (v instanceof List<?> list) {
+                gen.writeStartArray();
+                for (Object o : list) writeValue(gen, o);
+                gen.writeEndArray();
+            } else {
+                gen.writeString(String.valueOf(v));
+            }
+        }
+
+        private PayloadJson() {}
+    }
+
+    // ----------------------------- Any version -----------------------------
+
+    /**
+     * Decodes an HKP1/HKP2/HKP3 meta, dispatching on its magic.
+     */
+    public static Map<String, Object> decodeMeta(ByteBuffer meta) throws IOException {
+        return switch (peekMagic(meta)) {
+            case PayloadV1.MAGIC -> PayloadV1.decodeMeta(meta);
+            case PayloadV2.MAGIC -> PayloadV2.decodeMeta(meta);
+            case PayloadV3.MAGIC -> PayloadV3.decodeMeta(meta);
+            default -> throw new IOException("bad meta magic: 0x" + Integer.toHexString(peekMagic(meta)));
+        };
+    }
+
+    /**
+     * Like decodeMeta(ByteBuffer) but also reports the meta size, i.e. where the body starts.
+     */
+    public static DecodedMeta decodeMetaWithSize(ByteBuffer metaAtPosition0) throws IOException {
+        return decodeMetaWithSize(metaAtPosition0, null);
+    }
+
+    /**
+     * Like decodeMetaWithSize(ByteBuffer); dict is the segment dictionary used by HKP3 records (may be null).
+     */
+    public static DecodedMeta decodeMetaWithSize(ByteBuffer metaAtPosition0, SegmentDictionary dict) throws IOException {
+        return switch (peekMagic(metaAtPosition0)) {
+            case PayloadV1.MAGIC -> PayloadV1.decodeMetaWithSize(metaAtPosition0);
+            case PayloadV2.MAGIC -> PayloadV2.decodeMetaWithSize(metaAtPosition0);
+            case PayloadV3.MAGIC -> PayloadV3.decodeMetaWithSize(metaAtPosition0, dict);
+            default -> throw new IOException("bad meta magic: 0x" + Integer.toHexString(peekMagic(metaAtPosition0)));
+        };
+    }
+
+    private static int peekMagic(ByteBuffer meta) throws EOFException {
+        Objects.requireNonNull(meta, "meta");
+        int p = meta.position();
+        if (meta.limit() - p < 4) throw new EOFException();
+        return ((meta.get(p) & 0xFF) << 24)
+               | ((meta.get(p + 1) & 0xFF) << 16)
+               | ((meta.get(p + 2) & 0xFF) << 8)
+               | (meta.get(p + 3) & 0xFF);
+    }
+
+    // ----------------------------- Shared helpers (V2/V3) -----------------------------
+    // V1 keeps its own stream-based copies; these write straight into a ByteBuffer.
+
+    private static String ipToString(byte[] ipBytes) {
+        try {
+            return InetAddress.getByAddress(ipBytes).getHostAddress();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static byte methodToByte(String m) {
+        if (m == null) return 0;
+        return switch (m) {
+            case "GET" -> 1;
+            case "POST" -> 2;
+            case "PUT" -> 3;
+            case "PATCH" -> 4;
+            case "DELETE" -> 5;
+            case "HEAD" -> 6;
+            case "OPTIONS" -> 7;
+            default -> 0;
+        };
+    }
+
+    private static byte schemeToByte(String s) {
+        if (s == null) return 0;
+        return switch (s) {
+            case "http" -> 1;
+            case "https" -> 2;
+            default -> 0;
+        };
+    }
+
+    private static String byteToMethod(int code) {
+        return switch (code) {
+            case 1 -> "GET";
+            case 2 -> "POST";
+            case 3 -> "PUT";
+            case 4 -> "PATCH";
+            case 5 -> "DELETE";
+            case 6 -> "HEAD";
+            case 7 -> "OPTIONS";
+            default -> "";
+        };
+    }
+
+    private static String byteToScheme(int code) {
+        return switch (code) {
+            case 1 -> "http";
+            case 2 -> "https";
+            default -> "";
+        };
+    }
+
+    private static void writeVarUtf8(ByteBuffer out, String s) {
+        String x = (s == null) ? "" : s;
+        writeVarint(out, utf8Length(x));
+        writeUtf8(out, x);
+    }
+
+    private static void writeVarAsciiLower(ByteBuffer out, String s) {
+        if (s == null || s.isEmpty()) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        if (!isAscii(s)) {
+            writeVarUtf8(out, s.toLowerCase(Locale.ROOT));
+            return;
+        }
+
+        int n = s.length();
+        writeVarint(out, n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') c = (char) (c + 32);
+            out.put((byte) c);
+        }
+    }
+
+    /**
+     * Same bytes as s.getBytes(UTF_8), including '?' for unpaired surrogates, without the intermediate array.
+     */
+    private static void writeUtf8(ByteBuffer out, String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out.put((byte) (0xF0 | (cp >> 18)));
+                    out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    out.put((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    out.put((byte) '?');
+                }
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static void writeU8(ByteBuffer out, int v) {
+        out.put((byte) v);
+    }
+
+    private static void writeInt16(ByteBuffer out, int v) {
+        out.put((byte) (v >>> 8));
+        out.put((byte) v);
+    }
+
+    private static void writeInt32(ByteBuffer out, int v) {
+        out.put((byte) (v >>> 24));
+        out.put((byte) (v >>> 16));
+        out.put((byte) (v >>> 8));
+        out.put((byte) v);
+    }
+
+    private static void writeVarint(ByteBuffer out, int v) {
+        int x = v;
+        while ((x & ~0x7F) != 0) {
+            out.put((byte) ((x & 0x7F) | 0x80));
+            x >>>= 7;
+        }
+        out.put((byte) x);
+    }
+
+    private static void writeVarint64(ByteBuffer out, long v) {
+        long x = v;
+        while ((x & ~0x7FL) != 0) {
+            out.put((byte) ((x & 0x7F) | 0x80));
+            x >>>= 7;
+        }
+        out.put((byte) x);
+    }
+
+    // ----------------- size helpers -----------------
+
+    private static int varUtf8Size(String s) {
+        int len = (s == null) ? 0 : utf8Length(s);
+        return varintSize(len) + len;
+    }
+
+    private static int varAsciiLowerSize(String s) {
+        if (s == null || s.isEmpty()) return 1;
+        if (!isAscii(s)) return varUtf8Size(s.toLowerCase(Locale.ROOT));
+        return varintSize(s.length()) + s.length();
+    }
+
+    private static int utf8Length(String s) {
+        int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                len += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 2; // 4 bytes for 2 chars
+                    i++;
+                }
+                // unpaired surrogate -> '?' (1 byte)
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    private static boolean isAscii(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) > 0x7F) return false;
+        }
+        return true;
+    }
+
+    private static int varintSize(int v) {
+        int x = v;
+        int n = 1;
+        while ((x & ~0x7F) != 0) {
+            n++;
+            x >>>= 7;
+        }
+        return n;
+    }
+
+    private static int varint64Size(long v) {
+        long x = v;
+        int n = 1;
+        while ((x & ~0x7FL) != 0) {
+            n++;
+            x >>>= 7;
+        }
+        return n;
+    }
+
+    private static int readU8(ByteBuffer b) throws EOFException {
+        if (!b.hasRemaining()) throw new EOFException();
+        return b.get() & 0xFF;
+    }
+
+    private static int readInt16(ByteBuffer b) throws EOFException {
+        if (b.remaining() < 2) throw new EOFException();
+        return ((b.get() & 0xFF) << 8) | (b.get() & 0xFF);
+    }
+
+    private static int readInt32(ByteBuffer b) throws EOFException {
+        if (b.remaining() < 4) throw new EOFException();
+        return ((b.get() & 0xFF) << 24)
+               | ((b.get() & 0xFF) << 16)
+               | ((b.get() & 0xFF) << 8)
+               | (b.get() & 0xFF);
+    }
+
+    private static int readVarint(ByteBuffer b) throws EOFException, IOException {
+        int shift = 0;
+        int result = 0;
+        while (shift < 32) {
+            int x = readU8(b);
+            result |= (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return result;
+            shift += 7;
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static long readVarint64(ByteBuffer b) throws EOFException, IOException {
+        int shift = 0;
+        long result = 0;
+        while (shift < 64) {
+            int x = readU8(b);
+            result |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return result;
+            shift += 7;
+        }
+        throw new IOException("varint64 too long");
+    }
+
+    private static String readVarUtf8(ByteBuffer b) throws EOFException, IOException {
+        int len = readVarint(b);
+        if (len < 0) throw new IOException("negative utf8 len");
+        if (len > MAX_UTF8_LEN) throw new IOException("utf8 token too large: " + len);
+        if (b.remaining() < len) throw new EOFException();
+        byte[] data = new byte[len];
+        b.get(data);
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     // ----------------------------- Common output -----------------------------
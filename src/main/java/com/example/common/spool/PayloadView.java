@@ -0,0 +1,531 @@
+package com.example.common.spool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reusable view over an HKP1/HKP2 meta.
+ *
+ * reset() walks the meta once and only records where each field lives; nothing is decoded or allocated.
+ * Accessors decode a single field on demand, so a consumer that needs just host or body_len
+ * pays for exactly that (the Strings they return are the only allocations, apart from scratch space
+ * that grows once and is reused). One instance can be reset() onto every record of a segment.
+ *
+ * Header accessors answer like the decodeMeta() headers map: a repeated V2 name keeps the values of its
+ * last entry, a repeated V1 name has the values of all its entries merged.
+ *
+ * The view reads the buffer with absolute gets and never changes its position, limit or order.
+ * The buffer must not be modified while the view is in use. Not thread-safe.
+ */
+public final class PayloadView {
+
+    private ByteBuffer buf;
+    private int start;
+    private int metaBytes;
+
+    private int version;
+    private int flags;
+    private int methodCode;
+    private int schemeCode;
+
+    private int ipOff;
+    private int ipLen;
+
+    private int hostOff, hostLen;
+    private int pathOff, pathLen;
+    private int queryOff, queryLen;
+    private int machineOff, machineLen;
+
+    // V1: start of the headers blob; V2: first header entry (after headerCount)
+    private int headersOff;
+    private int headersEnd;
+    private int headerCount;
+
+    private long bodyLen;
+
+    // parse cursor and its upper bound (-1 = buffer limit), only meaningful inside reset()/header walks
+    private int p;
+    private int bound = -1;
+
+    // scratch for decoding strings out of direct buffers
+    private byte[] scratch = new byte[256];
+    // scratch for headerCount(): where each header name token's bytes are
+    private int[] nameOff = new int[16];
+    private int[] nameLen = new int[16];
+
+    /**
+     * Indexes the meta that starts at buf.position().
+     */
+    public PayloadView reset(ByteBuffer buf) throws IOException {
+        return reset(buf, buf.position());
+    }
+
+    /**
+     * Indexes the meta that starts at the absolute index offset of buf.
+     * On failure the view is left cleared.
+     */
+    public PayloadView reset(ByteBuffer buf, int offset) throws IOException {
+        try {
+            index(buf, offset);
+            return this;
+        } catch (IndexOutOfBoundsException e) {
+            this.buf = null;
+            throw new EOFException("meta truncated");
+        } catch (IOException e) {
+            this.buf = null;
+            throw e;
+        }
+    }
+
+    private void index(ByteBuffer b, int offset) throws IOException {
+        this.buf = b;
+        this.start = offset;
+        this.p = offset;
+
+        int magic = readInt32();
+        if (magic == Payload.PayloadV1.MAGIC) {
+            version = 1;
+        } else if (magic == Payload.PayloadV2.MAGIC) {
+            version = 2;
+        } else {
+            throw new IOException("bad meta magic: 0x" + Integer.toHexString(magic));
+        }
+
+        flags = readInt16();
+        methodCode = readU8();
+        schemeCode = readU8();
+
+        ipLen = readU8();
+        ipOff = p;
+        skip(ipLen, "remoteIp truncated");
+
+        hostLen = readLen();
+        hostOff = p;
+        skip(hostLen, null);
+        pathLen = readLen();
+        pathOff = p;
+        skip(pathLen, null);
+        queryLen = readLen();
+        queryOff = p;
+        skip(queryLen, null);
+        machineLen = readLen();
+        machineOff = p;
+        skip(machineLen, null);
+
+        if (version == 1) {
+            int headersBytesLen = readVarint();
+            if (headersBytesLen < 0) throw new IOException("negative headersBytesLen");
+            if (headersBytesLen > Payload.MAX_HEADERS_SECTION_LEN) throw new IOException("headers section too large: " + headersBytesLen);
+            headersOff = p;
+            skip(headersBytesLen, "headers section truncated");
+            headersEnd = p;
+            headerCount = -1; // counted lazily, V1 needs the heuristic walk
+        } else {
+            headerCount = readVarint();
+            if (headerCount < 0) throw new IOException("negative headerCount");
+            if (headerCount > Payload.MAX_HEADERS_COUNT) throw new IOException("too many headers: " + headerCount);
+            headersOff = p;
+            for (int i = 0; i < headerCount; i++) {
+                skip(readLen(), null);
+                int valueCount = readValueCount();
+                for (int j = 0; j < valueCount; j++) skip(readLen(), null);
+            }
+            headersEnd = p;
+        }
+
+        bodyLen = readVarint64();
+        if (bodyLen < 0) throw new IOException("negative bodyLen");
+
+        metaBytes = p - start;
+    }
+
+    // ----------------------------- fields -----------------------------
+
+    /** 1 for HKP1, 2 for HKP2. */
+    public int version() {
+        return version;
+    }
+
+    /** "HKP1" / "HKP2", as in decodeMeta(). */
+    public String magic() {
+        return version == 1 ? "HKP1" : "HKP2";
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    /** Size of the meta in bytes; same value as DecodedMeta.getMetaBytes(). */
+    public int metaBytes() {
+        return metaBytes;
+    }
+
+    /** Absolute index in the buffer where the meta starts. */
+    public int metaOffset() {
+        return start;
+    }
+
+    /** Absolute index in the buffer right after the meta, i.e. where the body starts. */
+    public int bodyOffset() {
+        return start + metaBytes;
+    }
+
+    public long bodyLen() {
+        return bodyLen;
+    }
+
+    public String method() {
+        return switch (methodCode) {
+            case 1 -> "GET";
+            case 2 -> "POST";
+            case 3 -> "PUT";
+            case 4 -> "PATCH";
+            case 5 -> "DELETE";
+            case 6 -> "HEAD";
+            case 7 -> "OPTIONS";
+            default -> "";
+        };
+    }
+
+    public String scheme() {
+        return switch (schemeCode) {
+            case 1 -> "http";
+            case 2 -> "https";
+            default -> "";
+        };
+    }
+
+    public boolean hasRemoteIp() {
+        return ipLen > 0;
+    }
+
+    /** Remote IP formatted like decodeMeta() does, or null when absent/invalid. */
+    public String remoteIp() {
+        if (ipLen == 0) return null;
+        byte[] ip = new byte[ipLen];
+        buf.get(ipOff, ip);
+        try {
+            return InetAddress.getByAddress(ip).getHostAddress();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public String host() {
+        return utf8(hostOff, hostLen);
+    }
+
+    public String path() {
+        return utf8(pathOff, pathLen);
+    }
+
+    public String query() {
+        return utf8(queryOff, queryLen);
+    }
+
+    public String machine() {
+        return utf8(machineOff, machineLen);
+    }
+
+    // ----------------------------- headers -----------------------------
+
+    /**
+     * Number of distinct header names, i.e. the size of the decodeMeta() headers map.
+     * Both versions walk the names; repeated names are counted once.
+     */
+    public int headerCount() throws IOException {
+        int n = 0;
+        if (version == 2) {
+            p = headersOff;
+            for (int i = 0; i < headerCount; i++) {
+                n = addName(n);
+                int valueCount = readValueCount();
+                for (int j = 0; j < valueCount; j++) skip(readLen(), null);
+            }
+        } else {
+            beginV1Walk();
+            try {
+                while (p < headersEnd) {
+                    n = addName(n);
+                    skipV1Values();
+                }
+            } finally {
+                bound = -1;
+            }
+        }
+
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            boolean seen = false;
+            for (int k = 0; k < i && !seen; k++) seen = bytesEqual(nameOff[k], nameLen[k], nameOff[i], nameLen[i]);
+            if (!seen) distinct++;
+        }
+        return distinct;
+    }
+
+    /**
+     * First value of the header, "" when it has no values, null when absent. A repeated V2 name answers
+     * from its last entry, like the decoder.
+     * The name is matched case-insensitively against the stored lower-case name.
+     */
+    public String header(String name) throws IOException {
+        byte[] key = lowerAsciiKey(name);
+        if (version == 2) {
+            p = headersOff;
+            // first value of the last matching entry: -1 = none yet, -2 = it has no values
+            int valueOff = -1;
+            int valueLen = 0;
+            for (int i = 0; i < headerCount; i++) {
+                boolean match = tokenEquals(name, key);
+                int valueCount = readValueCount();
+                for (int j = 0; j < valueCount; j++) {
+                    int len = readLen();
+                    if (match && j == 0) {
+                        valueOff = p;
+                        valueLen = len;
+                    }
+                    skip(len, null);
+                }
+                if (match && valueCount == 0) valueOff = -2;
+            }
+            if (valueOff == -1) return null;
+            return valueOff == -2 ? "" : utf8(valueOff, valueLen);
+        }
+
+        beginV1Walk();
+        try {
+            while (p < headersEnd) {
+                boolean match = tokenEquals(name, key);
+                if (match) {
+                    // the token after a name is always its value; a name can only be valueless at the very end
+                    if (p >= headersEnd) return "";
+                    int len = readLen();
+                    skip(len, null);
+                    return utf8(p - len, len);
+                }
+                skipV1Values();
+            }
+        } finally {
+            bound = -1;
+        }
+        return null;
+    }
+
+    /**
+     * All values of the header in encoding order (empty list when absent): for V2 those of its last
+     * entry, for V1 those of all its entries.
+     */
+    public List<String> headerValues(String name) throws IOException {
+        byte[] key = lowerAsciiKey(name);
+        List<String> out = new ArrayList<>(1);
+        if (version == 2) {
+            p = headersOff;
+            for (int i = 0; i < headerCount; i++) {
+                boolean match = tokenEquals(name, key);
+                if (match) out.clear(); // a later entry replaces an earlier one
+                int valueCount = readValueCount();
+                for (int j = 0; j < valueCount; j++) {
+                    int len = readLen();
+                    if (match) out.add(utf8(p, len));
+                    skip(len, null);
+                }
+            }
+            return out;
+        }
+
+        beginV1Walk();
+        try {
+            while (p < headersEnd) {
+                boolean match = tokenEquals(name, key);
+                // same heuristic as PayloadV1.decodeHeadersBestEffort: at least one value, then stop at a name-like token
+                boolean first = true;
+                while (p < headersEnd && (first || !looksLikeHeaderNameAt(p))) {
+                    first = false;
+                    int len = readLen();
+                    if (match) out.add(utf8(p, len));
+                    skip(len, null);
+                }
+            }
+        } finally {
+            bound = -1;
+        }
+        return out;
+    }
+
+    public boolean hasHeader(String name) throws IOException {
+        return header(name) != null;
+    }
+
+    // ----------------------------- internals -----------------------------
+
+    /**
+     * V1 tokens must stay inside the headers blob, like the decoder's slice.
+     */
+    private void beginV1Walk() {
+        p = headersOff;
+        bound = headersEnd;
+    }
+
+    private void skipV1Values() throws IOException {
+        boolean first = true;
+        while (p < headersEnd && (first || !looksLikeHeaderNameAt(p))) {
+            first = false;
+            skip(readLen(), null);
+        }
+    }
+
+    /** Records where the name token at p is (as the n-th name) and advances past it; returns n + 1. */
+    private int addName(int n) throws IOException {
+        if (n == nameOff.length) {
+            nameOff = Arrays.copyOf(nameOff, n * 2);
+            nameLen = Arrays.copyOf(nameLen, n * 2);
+        }
+        int len = readLen();
+        nameOff[n] = p;
+        nameLen[n] = len;
+        skip(len, null);
+        return n + 1;
+    }
+
+    private boolean bytesEqual(int aOff, int aLen, int bOff, int bLen) {
+        if (aLen != bLen) return false;
+        for (int i = 0; i < aLen; i++) {
+            if (buf.get(aOff + i) != buf.get(bOff + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the token at p and compares it to the lower-cased lookup name; advances past the token.
+     */
+    private boolean tokenEquals(String name, byte[] key) throws IOException {
+        int len = readLen();
+        int off = p;
+        skip(len, null);
+        if (key != null) {
+            if (len != key.length) return false;
+            for (int i = 0; i < len; i++) {
+                if (buf.get(off + i) != key[i]) return false;
+            }
+            return true;
+        }
+        // ASCII fast path: compare without materializing the name
+        if (len != name.length()) return false;
+        for (int i = 0; i < len; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') c = (char) (c + 32);
+            if (buf.get(off + i) != (byte) c) return false;
+        }
+        return true;
+    }
+
+    /**
+     * null for plain ASCII names (compared char by char), otherwise the UTF-8 of the lower-cased name.
+     */
+    private static byte[] lowerAsciiKey(String name) {
+        int n = name.length();
+        for (int i = 0; i < n; i++) {
+            if (name.charAt(i) > 0x7F) return name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Byte-level equivalent of PayloadV1.looksLikeHeaderName() for the token at index i.
+     */
+    private boolean looksLikeHeaderNameAt(int i) throws IOException {
+        int save = p;
+        p = i;
+        int len = readLen();
+        int off = p;
+        p = save;
+        if (len < 2 || off + len > headersEnd) return false;
+        for (int k = 0; k < len; k++) {
+            int c = buf.get(off + k);
+            boolean ok = (c >= 'a' && c <= 'z')
+                         || (c >= '0' && c <= '9')
+                         || c == '-' || c == '_';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    private String utf8(int off, int len) {
+        if (len == 0) return "";
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + off, len, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        buf.get(off, scratch, 0, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private int end() {
+        return bound < 0 ? buf.limit() : bound;
+    }
+
+    private void skip(int len, String truncatedMessage) throws EOFException {
+        if (end() - p < len) {
+            throw truncatedMessage == null ? new EOFException() : new EOFException(truncatedMessage);
+        }
+        p += len;
+    }
+
+    private int readValueCount() throws IOException {
+        int valueCount = readVarint();
+        if (valueCount < 0) throw new IOException("negative valueCount");
+        if (valueCount > Payload.MAX_HEADER_VALUES) throw new IOException("too many header values: " + valueCount);
+        return valueCount;
+    }
+
+    private int readLen() throws IOException {
+        int len = readVarint();
+        if (len < 0) throw new IOException("negative utf8 len");
+        if (len > Payload.MAX_UTF8_LEN) throw new IOException("utf8 token too large: " + len);
+        return len;
+    }
+
+    private int readU8() throws EOFException {
+        if (p >= end()) throw new EOFException();
+        return buf.get(p++) & 0xFF;
+    }
+
+    private int readInt16() throws EOFException {
+        return (readU8() << 8) | readU8();
+    }
+
+    private int readInt32() throws EOFException {
+        return (readU8() << 24) | (readU8() << 16) | (readU8() << 8) | readU8();
+    }
+
+    private int readVarint() throws IOException {
+        int shift = 0;
+        int result = 0;
+        while (shift < 32) {
+            int x = readU8();
+            result |= (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return result;
+            shift += 7;
+        }
+        throw new IOException("varint too long");
+    }
+
+    private long readVarint64() throws IOException {
+        int shift = 0;
+        long result = 0;
+        while (shift < 64) {
+            int x = readU8();
+            result |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return result;
+            shift += 7;
+        }
+        throw new IOException("varint64 too long");
+    }
+}
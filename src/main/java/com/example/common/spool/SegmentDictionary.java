@@ -0,0 +1,131 @@
+package com.example.common.spool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segment-scoped dynamic dictionary for HKP3 header names and values.
+ *
+ * The encoder of a segment owns one instance and passes it to every PayloadV3.encodeMeta() call.
+ * Literal names/values that are long enough are appended to the dictionary after the record is written,
+ * so later records of the same segment refer to them by index instead of repeating them.
+ * A reader rebuilds the same table by decoding (or replay()-ing) the segment's records in order with a
+ * fresh instance; once it has seen the whole segment, any record of it can be decoded in random order.
+ *
+ * The table is append-only (no eviction) and stops growing when full, which keeps encoder and decoder
+ * in lock-step without any extra bytes on disk. Entries added by a record are only visible to later
+ * records, never to the record itself.
+ *
+ * IMPORTANT: the limits below are part of the on-disk format; changing them breaks existing segments.
+ *
+ * Not thread-safe; one instance per segment (writers append under a single lock anyway).
+ */
+public final class SegmentDictionary {
+
+    static final int MIN_ENTRY_LEN = 8;         // shorter tokens are cheaper to repeat than to track
+    static final int MAX_ENTRY_LEN = 1024;      // huge values are unlikely to repeat verbatim
+    static final int MAX_ENTRIES = 4096;        // names + values
+    static final long MAX_CHARS = 1024 * 1024;  // sum of entry lengths
+
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final Map<String, Integer> valueIndex = new HashMap<>();
+    private long chars;
+
+    // literals seen by the record currently being encoded/decoded, added on commit()
+    private final List<String> pendingNames = new ArrayList<>();
+    private final List<String> pendingValues = new ArrayList<>();
+
+    public int nameCount() {
+        return names.size();
+    }
+
+    public int valueCount() {
+        return values.size();
+    }
+
+    public boolean isFull() {
+        return names.size() + values.size() >= MAX_ENTRIES || chars >= MAX_CHARS;
+    }
+
+    /**
+     * Drops all entries, e.g. when the writer rolls to a new segment.
+     */
+    public void clear() {
+        names.clear();
+        values.clear();
+        nameIndex.clear();
+        valueIndex.clear();
+        chars = 0;
+        rollback();
+    }
+
+    // ----------------- codec side (package-private) -----------------
+
+    /** Index of the lower-cased name, or -1. */
+    int nameIndex(String lowerName) {
+        Integer i = nameIndex.get(lowerName);
+        return i == null ? -1 : i;
+    }
+
+    /** Index of the exact value, or -1. */
+    int valueIndex(String value) {
+        Integer i = valueIndex.get(value);
+        return i == null ? -1 : i;
+    }
+
+    String name(int i) {
+        return names.get(i);
+    }
+
+    String value(int i) {
+        return values.get(i);
+    }
+
+    void stageName(String lowerName) {
+        if (eligible(lowerName)) pendingNames.add(lowerName);
+    }
+
+    void stageValue(String value) {
+        if (eligible(value)) pendingValues.add(value);
+    }
+
+    /**
+     * Appends the staged literals of the current record (names first, then values, each in
+     * encounter order), skipping ones that are already present or that no longer fit.
+     */
+    void commit() {
+        for (String n : pendingNames) {
+            if (!nameIndex.containsKey(n) && fits(n)) {
+                nameIndex.put(n, names.size());
+                names.add(n);
+                chars += n.length();
+            }
+        }
+        for (String v : pendingValues) {
+            if (!valueIndex.containsKey(v) && fits(v)) {
+                valueIndex.put(v, values.size());
+                values.add(v);
+                chars += v.length();
+            }
+        }
+        rollback();
+    }
+
+    /** Forgets the staged literals (record was not written / failed to decode). */
+    void rollback() {
+        pendingNames.clear();
+        pendingValues.clear();
+    }
+
+    private static boolean eligible(String s) {
+        return s != null && s.length() >= MIN_ENTRY_LEN && s.length() <= MAX_ENTRY_LEN;
+    }
+
+    private boolean fits(String s) {
+        return names.size() + values.size() < MAX_ENTRIES && chars + s.length() <= MAX_CHARS;
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.common.spool;
+
+import com.example.common.config.ArchiveProps;
+import com.example.common.config.SpoolProps;
+import com.example.common.config.TieredProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * Reads records of segments that SpoolArchiver moved to S3 and retention then deleted locally.
+ *
+ * Archived segments are found through their local markers (which retention leaves in place), so no
+ * bucket listing is needed. Reads fetch the segment object in chunks with ranged GETs through an on-disk
+ * LRU cache (SpoolChunkCache); the uploaded sparse index gets a lookup to the right chunk, and sequential
+ * reads prefetch the next fetchConcurrency chunks, so a replay streams at S3 throughput rather than at
+ * one round trip per chunk.
+ *
+ * Thread-safe; reads of one archived segment are serialized.
+ */
+public final class SpoolArchiveReader implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolArchiveReader.class);
+
+    private final Path dir;
+    private final int indexInterval;
+    private final String bucket;
+    private final S3Client s3;
+    private final SpoolChunkCache cache;
+    private final int prefetchChunks;
+
+    // baseOffset -> archived segment, from the local markers
+    private final TreeMap<Long, Archived> archived = new TreeMap<>();
+
+    public SpoolArchiveReader(SpoolProps spool, ArchiveProps archive, TieredProps props, S3Client s3) throws IOException {
+        Objects.requireNonNull(spool, "spool");
+        Objects.requireNonNull(archive, "archive");
+        Objects.requireNonNull(props, "props");
+        this.s3 = Objects.requireNonNull(s3, "s3");
+        this.dir = Paths.get(spool.dir());
+        this.indexInterval = spool.indexInterval();
+        this.bucket = archive.bucket();
+        this.cache = new SpoolChunkCache(s3, bucket, props);
+        this.prefetchChunks = props.fetchConcurrency();
+    }
+
+    /**
+     * Offset of the oldest archived record, or -1 if nothing is archived.
+     */
+    public long firstOffset() throws IOException {
+        synchronized (this) {
+            refresh();
+            return archived.isEmpty() ? -1 : archived.firstKey();
+        }
+    }
+
+    /**
+     * True if offset lies in an archived segment.
+     */
+    public boolean contains(long offset) throws IOException {
+        return archivedFor(offset) != null;
+    }
+
+    /**
+     * Returns the archived record with the given offset, or null if no archived segment holds it.
+     * Meta and body may be slices of a mapped cache chunk; they stay valid after the chunk is evicted.
+     *
+     * @throws IOException if the object cannot be fetched or the record is damaged
+     */
+    public SpoolRecord read(long offset) throws IOException {
+        Archived a = archivedFor(offset);
+        if (a == null) return null;
+        synchronized (a) {
+            open(a);
+            int pos = locate(a, offset);
+            int frameLen = range(a, pos, 4).getInt(0);
+            ByteBuffer f = frameLen > 0 && (long) pos + 4 + frameLen <= a.manifest.bytes() ? range(a, pos, 4 + frameLen) : null;
+            if (f == null || !SpoolSegment.frameLooksValid(f, 0, frameLen, f.limit(), offset)) {
+                throw new IOException("corrupt archived spool frame at " + a.manifest.key() + ":" + pos + " (offset " + offset + ")");
+            }
+            if (!SpoolSegment.checksumMatches(f, 0, frameLen)) {
+                throw new IOException("archived spool record " + offset + " is damaged (checksum mismatch at " + a.manifest.key() + ":" + pos + ")");
+            }
+            a.nextOffset = offset + 1;
+            a.nextPos = SpoolSegment.next(pos, frameLen);
+            prefetch(a);
+            return SpoolSegment.record(f, 0, frameLen, a.manifest.baseOffset(), pos);
+        }
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+
+    // ----------------- internals -----------------
+
+    private Archived archivedFor(long offset) throws IOException {
+        synchronized (this) {
+            Map.Entry<Long, Archived> e = archived.floorEntry(offset);
+            if (e == null || offset >= e.getValue().manifest.endOffset()) {
+                refresh();
+                e = archived.floorEntry(offset);
+            }
+            return e != null && offset < e.getValue().manifest.endOffset() ? e.getValue() : null;
+        }
+    }
+
+    /** Picks up markers written since the last call. Caller holds the lock. */
+    private void refresh() throws IOException {
+        List<Path> markers = new ArrayList<>();
+        try (Stream<Path> s = Files.list(dir)) {
+            s.filter(p -> p.getFileName().toString().endsWith(SpoolArchiver.MARKER_SUFFIX)).forEach(markers::add);
+        }
+        for (Path p : markers) {
+            String n = p.getFileName().toString();
+            long base;
+            try {
+                base = Long.parseLong(n.substring(0, n.length() - SpoolArchiver.MARKER_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (archived.containsKey(base)) continue;
+            try {
+                archived.put(base, new Archived(SpoolArchiver.readMarker(p)));
+            } catch (NoSuchFileException e) {
+                // gone since the listing
+            }
+        }
+    }
+
+    /** Reads the segment header and the uploaded index on first use. Caller holds a's lock. */
+    private void open(Archived a) throws IOException {
+        if (a.index != null) return;
+
+        ByteBuffer h = range(a, 0, 8);
+        if (h.getInt(0) != SpoolSegment.MAGIC) throw new IOException("bad segment magic in " + a.manifest.key());
+        int version = h.getInt(4);
+        if (version != SpoolSegment.VERSION) {
+            throw new IOException("unsupported segment version " + version + " in " + a.manifest.key());
+        }
+
+        SpoolIndex idx;
+        try {
+            byte[] bytes = s3.getObjectAsBytes(r -> r.bucket(bucket).key(a.manifest.indexKey())).asByteArray();
+            idx = SpoolIndex.parse(bytes, a.manifest.baseOffset(), (int) a.manifest.bytes());
+        } catch (NoSuchKeyException | IOException e) {
+            // reads still work, the first lookups just hop from the start (and fill the index as they go)
+            log.warn("spool archive: no usable index for {}: {}", a.manifest.key(), e.getMessage());
+            idx = new SpoolIndex(a.manifest.baseOffset(), indexInterval);
+        }
+        a.index = idx;
+    }
+
+    /**
+     * Position of the frame with the given offset: right after the previous read when sequential,
+     * otherwise an index lookup plus frame hops (which only need the frame length words).
+     */
+    private int locate(Archived a, long offset) throws IOException {
+        if (offset == a.nextOffset) return a.nextPos;
+
+        int i = a.index.floor(offset);
+        long cur = i >= 0 ? a.index.offsetAt(i) : a.manifest.baseOffset();
+        int pos = i >= 0 ? a.index.positionAt(i) : SpoolSegment.HEADER_BYTES;
+        while (cur < offset) {
+            if (pos + 4 > a.manifest.bytes()) {
+                throw new IOException("archived segment " + a.manifest.key() + " ends before offset " + offset);
+            }
+            int frameLen = range(a, pos, 4).getInt(0);
+            if (frameLen <= 0) throw new IOException("corrupt archived spool frame at " + a.manifest.key() + ":" + pos);
+            a.index.maybeAdd(cur, pos);
+            cur++;
+            pos = SpoolSegment.next(pos, frameLen);
+        }
+        return pos;
+    }
+
+    /**
+     * Bytes [from, from + len) of the segment object, indexed from 0. Within one chunk this is a slice of
+     * the chunk; otherwise the chunks are fetched in parallel and copied together.
+     */
+    private ByteBuffer range(Archived a, int from, int len) throws IOException {
+        int chunkBytes = cache.chunkBytes;
+        int first = from / chunkBytes;
+        int last = (from + len - 1) / chunkBytes;
+        if (first == last) return chunk(a, first).slice(from - first * chunkBytes, len);
+
+        List<CompletableFuture<ByteBuffer>> parts = new ArrayList<>(last - first + 1);
+        for (int c = first; c <= last; c++) parts.add(cache.chunk(a.manifest.key(), a.manifest.bytes(), c));
+        ByteBuffer out = ByteBuffer.allocate(len);
+        for (int c = first; c <= last; c++) {
+            ByteBuffer chunk = join(parts.get(c - first));
+            int start = c == first ? from - first * chunkBytes : 0;
+            int n = Math.min(chunk.limit() - start, out.remaining());
+            out.put(chunk.slice(start, n));
+        }
+        return out.flip();
+    }
+
+    /** The chunk, reusing the last one of this segment (sequential reads stay in it for a while). */
+    private ByteBuffer chunk(Archived a, int c) throws IOException {
+        if (a.lastChunkIndex != c) {
+            a.lastChunk = join(cache.chunk(a.manifest.key(), a.manifest.bytes(), c));
+            a.lastChunkIndex = c;
+        }
+        return a.lastChunk;
+    }
+
+    /** Starts downloads of the chunks after the read position that are not requested yet. */
+    private void prefetch(Archived a) {
+        int chunkBytes = cache.chunkBytes;
+        int c = a.nextPos / chunkBytes;
+        for (int k = 1; k <= prefetchChunks; k++) {
+            int next = c + k;
+            if ((long) next * chunkBytes >= a.manifest.bytes()) break;
+            if (next <= a.prefetched) continue;
+            cache.chunk(a.manifest.key(), a.manifest.bytes(), next);
+            a.prefetched = next;
+        }
+    }
+
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> f) throws IOException {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException io) throw io;
+            throw new IOException("spool archive: chunk fetch failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final class Archived {
+        final SpoolArchiver.Manifest manifest;
+        // guarded by this
+        SpoolIndex index;
+        long nextOffset = -1;
+        int nextPos;
+        int lastChunkIndex = -1;
+        ByteBuffer lastChunk;
+        int prefetched = -1;
+
+        Archived(SpoolArchiver.Manifest manifest) {
+            this.manifest = manifest;
+        }
+    }
+}
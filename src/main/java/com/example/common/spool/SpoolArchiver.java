@@ -0,0 +1,332 @@
+package com.example.common.spool;
+
+import com.example.common.config.ArchiveProps;
+import com.example.common.config.SpoolProps;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * Uploads sealed spool segments to S3 (or any S3-compatible store).
+ *
+ * Each segment is uploaded as one object holding its written bytes (header + frames, without the unused
+ * tail), so archived objects keep the segment layout and can be read by range with the same frame
+ * positions. The upload is a multipart upload whose parts are read straight from the read-only mapping
+ * (no heap copy), concurrency parts at a time, each with an S3-verified CRC32C.
+ *
+ * Next to the object go its sparse index (key + ".idx") and a manifest (key + ".manifest.json") with the
+ * offset range [baseOffset, endOffset), the byte length and the CRC32C of the whole object, which is also
+ * stored as object metadata. Once everything is uploaded, the manifest is written locally as
+ * %020d.s3 next to the segment; its presence marks the segment as archived (see SpoolRetention).
+ */
+public final class SpoolArchiver implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolArchiver.class);
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    static final String MARKER_SUFFIX = ".s3";
+    private static final long MIN_PART_BYTES = 5L * 1024 * 1024;
+
+    /**
+     * What an archived object holds.
+     */
+    public record Manifest(
+            String key,
+            long baseOffset,
+            long endOffset,
+            long bytes,
+            String crc32c,
+            long partBytes,
+            int parts,
+            String indexKey,
+            long archivedAtMillis
+    ) {
+    }
+
+    private final Path dir;
+    private final int indexInterval;
+    private final ArchiveProps props;
+    private final S3Client s3;
+    private Disposable running;
+
+    public SpoolArchiver(SpoolProps spool, ArchiveProps props, S3Client s3) {
+        Objects.requireNonNull(spool, "spool");
+        this.props = Objects.requireNonNull(props, "props");
+        this.s3 = Objects.requireNonNull(s3, "s3");
+        if (props.partBytes() < MIN_PART_BYTES || props.partBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("partBytes must be in [" + MIN_PART_BYTES + ", " + Integer.MAX_VALUE + "]: " + props.partBytes());
+        }
+        if (props.concurrency() <= 0) throw new IllegalArgumentException("concurrency must be > 0: " + props.concurrency());
+        this.dir = Paths.get(spool.dir());
+        this.indexInterval = spool.indexInterval();
+    }
+
+    /**
+     * S3 client for the archive settings: url-connection HTTP client, optional endpoint override
+     * and static credentials (for local S3 stand-ins).
+     */
+    public static S3Client client(ArchiveProps props) {
+        S3ClientBuilder b = S3Client.builder()
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .region(Region.of(props.region()))
+                .forcePathStyle(props.pathStyle());
+        if (props.endpoint() != null && !props.endpoint().isBlank()) {
+            b.endpointOverride(URI.create(props.endpoint()));
+        }
+        if (props.accessKey() != null && !props.accessKey().isBlank()) {
+            b.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(props.accessKey(), props.secretKey())));
+        }
+        return b.build();
+    }
+
+    public synchronized void start() {
+        if (running != null) return;
+        running = Flux.interval(Duration.ofMillis(props.intervalMs()))
+                .onBackpressureDrop()
+                .concatMap(t -> runOnce()
+                        .onErrorResume(e -> {
+                            log.error("spool archive failed", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (running != null) running.dispose();
+        running = null;
+    }
+
+    /**
+     * Uploads every sealed segment that is not archived yet, oldest first.
+     *
+     * @return number of archived segments
+     */
+    public Mono<Integer> runOnce() {
+        return Mono.fromCallable(() -> {
+                    List<Path> segments = SpoolWriter.listSegments(dir);
+                    List<Path> todo = new ArrayList<>();
+                    // the newest segment may still be written to
+                    for (int i = 0; i < segments.size() - 1; i++) {
+                        if (!isArchived(segments.get(i))) todo.add(segments.get(i));
+                    }
+                    return todo;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(Flux::fromIterable)
+                .concatMap(this::archive)
+                .count()
+                .map(Long::intValue);
+    }
+
+    static Path markerFor(Path segment) {
+        String n = segment.getFileName().toString();
+        return segment.resolveSibling(n.substring(0, n.length() - SpoolSegment.SUFFIX.length()) + MARKER_SUFFIX);
+    }
+
+    static boolean isArchived(Path segment) {
+        return Files.exists(markerFor(segment));
+    }
+
+    /** Manifest of an archived segment, from its local marker. */
+    static Manifest readMarker(Path marker) throws IOException {
+        return JSON.readValue(marker.toFile(), Manifest.class);
+    }
+
+    String objectKey(long baseOffset) {
+        String prefix = props.prefix() == null ? "" : props.prefix();
+        return prefix + SpoolSegment.fileName(baseOffset);
+    }
+
+    // ----------------- upload -----------------
+
+    private Mono<Manifest> archive(Path path) {
+        return Mono.fromCallable(() -> SpoolSegment.open(path, false))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(seg -> upload(seg)
+                        .doFinally(sig -> {
+                            try {
+                                seg.close();
+                            } catch (IOException e) {
+                                log.warn("spool archive: closing {} failed", path.getFileName(), e);
+                            }
+                        }));
+    }
+
+    private Mono<Manifest> upload(SpoolSegment seg) {
+        return Mono.fromCallable(() -> extent(seg))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(ext -> {
+                    String key = objectKey(seg.baseOffset);
+                    int bytes = ext.dataEnd;
+                    CRC32C crc = new CRC32C();
+                    crc.update(seg.buf.slice(0, bytes));
+                    String crcHex = String.format("%08x", crc.getValue());
+                    int partBytes = (int) props.partBytes();
+                    int parts = Math.max(1, (bytes + partBytes - 1) / partBytes);
+
+                    Map<String, String> metadata = Map.of(
+                            "base-offset", Long.toString(seg.baseOffset),
+                            "end-offset", Long.toString(ext.endOffset),
+                            "crc32c", crcHex
+                    );
+                    String uploadId = s3.createMultipartUpload(r -> r
+                            .bucket(props.bucket())
+                            .key(key)
+                            .metadata(metadata)
+                            .checksumAlgorithm(ChecksumAlgorithm.CRC32_C)).uploadId();
+
+                    return Flux.range(1, parts)
+                            .flatMap(n -> Mono.fromCallable(() -> uploadPart(seg, key, uploadId, n, partBytes, bytes))
+                                    .subscribeOn(Schedulers.boundedElastic()), props.concurrency())
+                            .collectList()
+                            .map(done -> {
+                                done.sort(Comparator.comparingInt(CompletedPart::partNumber));
+                                s3.completeMultipartUpload(r -> r
+                                        .bucket(props.bucket())
+                                        .key(key)
+                                        .uploadId(uploadId)
+                                        .multipartUpload(CompletedMultipartUpload.builder().parts(done).build()));
+                                return new Manifest(key, seg.baseOffset, ext.endOffset, bytes, crcHex,
+                                        partBytes, parts, key + SpoolIndex.SUFFIX, System.currentTimeMillis());
+                            })
+                            .onErrorResume(e -> {
+                                try {
+                                    s3.abortMultipartUpload(r -> r.bucket(props.bucket()).key(key).uploadId(uploadId));
+                                } catch (RuntimeException abort) {
+                                    e.addSuppressed(abort);
+                                }
+                                return Mono.error(e);
+                            });
+                })
+                .publishOn(Schedulers.boundedElastic())
+                .map(m -> {
+                    finish(seg, m);
+                    log.info("spool archive: uploaded {} offsets [{}, {}) {} bytes in {} parts", m.key(), m.baseOffset(), m.endOffset(), m.bytes(), m.parts());
+                    return m;
+                });
+    }
+
+    private CompletedPart uploadPart(SpoolSegment seg, String key, String uploadId, int partNumber, int partBytes, int bytes) {
+        int from = (partNumber - 1) * partBytes;
+        int len = Math.min(partBytes, bytes - from);
+        // read-only view of the mapping, read through a stream (the SDK buffers what it sends, but the
+        // part is never copied onto the heap as a whole)
+        ByteBuffer slice = seg.buf.slice(from, len).asReadOnlyBuffer();
+        UploadPartResponse res = s3.uploadPart(r -> r
+                        .bucket(props.bucket())
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength((long) len)
+                        .checksumAlgorithm(ChecksumAlgorithm.CRC32_C),
+                RequestBody.fromContentProvider(() -> new ByteBufferInputStream(slice.duplicate()), len, "application/octet-stream"));
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(res.eTag())
+                .checksumCRC32C(res.checksumCRC32C())
+                .build();
+    }
+
+    /** Uploads the index and manifest, then writes the local marker (last, so it means "all done"). */
+    private void finish(SpoolSegment seg, Manifest m) {
+        try {
+            Path idx = SpoolIndex.pathFor(seg.path);
+            if (Files.exists(idx)) {
+                s3.putObject(r -> r.bucket(props.bucket()).key(m.indexKey()), RequestBody.fromFile(idx));
+            }
+            byte[] json = JSON.writeValueAsBytes(m);
+            s3.putObject(r -> r.bucket(props.bucket()).key(m.key() + ".manifest.json").contentType("application/json"),
+                    RequestBody.fromBytes(json));
+
+            Path marker = markerFor(seg.path);
+            Path tmp = marker.resolveSibling(marker.getFileName() + ".tmp");
+            Files.write(tmp, json);
+            Files.move(tmp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("spool archive: finishing " + m.key() + " failed", e);
+        }
+    }
+
+    private record Extent(long endOffset, int dataEnd) {
+    }
+
+    /** Stream over a buffer's remaining bytes (a fresh one per attempt, so retries re-read the part). */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * End of the segment's written data: the sparse index gets close, the last few frames are hopped.
+     */
+    private Extent extent(SpoolSegment seg) throws IOException {
+        SpoolIndex idx = SpoolIndex.loadOrBuild(seg, indexInterval, true);
+        int last = idx.floor(Long.MAX_VALUE);
+        long offset = last >= 0 ? idx.offsetAt(last) : seg.baseOffset;
+        int pos = last >= 0 ? idx.positionAt(last) : SpoolSegment.HEADER_BYTES;
+        while (true) {
+            int frameLen = seg.frameLen(pos);
+            if (frameLen == 0) break;
+            if (!seg.frameLooksValid(pos, frameLen, offset)) {
+                throw new IOException("corrupt spool frame at " + seg.path.getFileName() + ":" + pos + " (offset " + offset + ")");
+            }
+            offset++;
+            pos = SpoolSegment.next(pos, frameLen);
+        }
+        return new Extent(offset, Math.min(pos, seg.capacity));
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.common.spool;
+
+import com.example.common.config.CheckpointProps;
+import com.example.common.persistence.entity.SpoolCheckpointDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Consumer offsets of spool consumers, kept in the spool_checkpoints collection (one SpoolCheckpointDoc
+ * per consumer partition).
+ *
+ * commit() only records the offset in memory; pending offsets are written once maxPendingCommits
+ * commits have accumulated or maxDelayMs has passed, and only the latest offset per partition is
+ * written. So a crash loses at most that window and the consumer sees those records again, which
+ * idempotent EventDoc ids make harmless.
+ *
+ * Writes are CAS updates like the master lease in SelectMaster: the document is only updated while its
+ * offset is below the new one, so offsets never move backwards, whatever order writes land in. The
+ * exception is a change of the consumer's partition count: its first write replaces the old checkpoint,
+ * and the checkpoints of partitions beyond the new count are deleted.
+ */
+public final class SpoolCheckpointStore implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolCheckpointStore.class);
+
+    private final ReactiveMongoTemplate mongo;
+    private final int maxPendingCommits;
+
+    // id -> latest uncommitted offset
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    // storedKey(id, partitions) -> offset known to be stored with that partition count
+    private final Map<String, Long> stored = new ConcurrentHashMap<>();
+    // consumer + "@" + partitions whose checkpoints of partitions past the count are deleted
+    private final Set<String> pruned = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger commitsSinceFlush = new AtomicInteger();
+    private final Disposable timer;
+
+    public SpoolCheckpointStore(ReactiveMongoTemplate mongo, CheckpointProps props) {
+        this.mongo = Objects.requireNonNull(mongo, "mongo");
+        Objects.requireNonNull(props, "props");
+        if (props.maxPendingCommits() <= 0) throw new IllegalArgumentException("maxPendingCommits must be > 0: " + props.maxPendingCommits());
+        if (props.maxDelayMs() <= 0) throw new IllegalArgumentException("maxDelayMs must be > 0: " + props.maxDelayMs());
+        this.maxPendingCommits = props.maxPendingCommits();
+
+        this.timer = Flux.interval(Duration.ofMillis(props.maxDelayMs()))
+                .onBackpressureDrop()
+                .concatMap(t -> flush())
+                .subscribe();
+    }
+
+    static String id(String consumer, int partition) {
+        return consumer + "/" + partition;
+    }
+
+    private static String storedKey(String id, int partitions) {
+        return id + "@" + partitions;
+    }
+
+    /**
+     * Stored checkpoints of the consumer by partition; the consumer resumes from them on startup.
+     */
+    public Mono<Map<Integer, SpoolCheckpointDoc>> load(String consumer) {
+        Query q = Query.query(Criteria.where("consumer").is(consumer));
+        return mongo.find(q, SpoolCheckpointDoc.class)
+                .doOnNext(d -> stored.merge(storedKey(d.id(), d.partitions()), d.offset(), Math::max))
+                .collect(Collectors.toMap(SpoolCheckpointDoc::partition, d -> d, (a, b) -> a.offset() >= b.offset() ? a : b));
+    }
+
+    /**
+     * Offset below which the consumer has processed every record, from its stored checkpoints: the smallest
+     * one, provided they agree on the partition count and there is one for each partition; -1 otherwise (a
+     * partition without a checkpoint may not have processed anything).
+     */
+    static long committed(Collection<SpoolCheckpointDoc> docs) {
+        if (docs.isEmpty()) return -1;
+        int count = docs.iterator().next().partitions();
+        if (count <= 0 || docs.size() != count) return -1;
+        boolean[] seen = new boolean[count];
+        long min = Long.MAX_VALUE;
+        for (SpoolCheckpointDoc d : docs) {
+            if (d.partitions() != count || d.partition() < 0 || d.partition() >= count || seen[d.partition()]) return -1;
+            seen[d.partition()] = true;
+            min = Math.min(min, d.offset());
+        }
+        return min;
+    }
+
+    /**
+     * Records that every record of the partition below offset is processed. Cheap and non-blocking;
+     * offsets that do not advance the partition are ignored, unless the stored one was computed with
+     * another partition count.
+     */
+    public void commit(String consumer, int partition, int partitions, long offset) {
+        String id = id(consumer, partition);
+        Long known = stored.get(storedKey(id, partitions));
+        if (known != null && offset <= known) return;
+
+        Pending p = new Pending(id, consumer, partition, partitions, offset);
+        Pending now = pending.merge(id, p, (a, b) -> a.offset >= b.offset ? a : b);
+        if (now == p && commitsSinceFlush.incrementAndGet() >= maxPendingCommits) {
+            flush().subscribe();
+        }
+    }
+
+    /**
+     * Writes all pending offsets. Failed writes stay pending and are retried by the next flush.
+     */
+    public Mono<Void> flush() {
+        return Mono.defer(() -> {
+            commitsSinceFlush.set(0);
+            List<Pending> batch = new ArrayList<>(pending.size());
+            for (Pending p : pending.values()) {
+                if (pending.remove(p.id, p)) batch.add(p);
+            }
+            return Flux.fromIterable(batch)
+                    .flatMap(this::write)
+                    .thenMany(Flux.fromIterable(batch)
+                            .filter(p -> !pruned.contains(p.consumer + "@" + p.partitions))
+                            .distinct(p -> p.consumer + "@" + p.partitions)
+                            .flatMap(p -> prune(p.consumer, p.partitions)))
+                    .then();
+        });
+    }
+
+    /**
+     * Stops the timer after writing what is pending.
+     */
+    @Override
+    public void close() {
+        timer.dispose();
+        try {
+            flush().block(Duration.ofSeconds(10));
+        } catch (RuntimeException e) {
+            log.warn("spool checkpoints: final flush failed: {}", e.getMessage());
+        }
+    }
+
+    private Mono<Void> write(Pending p) {
+        // a checkpoint written with another partition count is replaced whatever its offset
+        Query query = Query.query(new Criteria().andOperator(
+                Criteria.where("_id").is(p.id),
+                new Criteria().orOperator(
+                        Criteria.where("offset").lt(p.offset),
+                        Criteria.where("partitions").ne(p.partitions))
+        ));
+        Update update = new Update()
+                .set("consumer", p.consumer)
+                .set("partition", p.partition)
+                .set("partitions", p.partitions)
+                .set("offset", p.offset)
+                .set("updatedAt", Instant.now());
+
+        return mongo.upsert(query, update, SpoolCheckpointDoc.class)
+                .then()
+                // the document exists with an offset >= ours: nothing to do
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                .doOnSuccess(v -> stored.merge(storedKey(p.id, p.partitions), p.offset, Math::max))
+                .onErrorResume(e -> {
+                    log.warn("spool checkpoints: write of {} -> {} failed, will retry: {}", p.id, p.offset, e.getMessage());
+                    pending.merge(p.id, p, (a, b) -> a.offset >= b.offset ? a : b);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Deletes the consumer's checkpoints of partitions at or past partitions, left over from a larger
+     * partition count: they would keep committed() incomplete forever. Done once per consumer and count.
+     */
+    private Mono<Void> prune(String consumer, int partitions) {
+        Query q = Query.query(Criteria.where("consumer").is(consumer).and("partition").gte(partitions));
+        return mongo.remove(q, SpoolCheckpointDoc.class)
+                .doOnNext(r -> {
+                    pruned.add(consumer + "@" + partitions);
+                    if (r.getDeletedCount() > 0) {
+                        log.info("spool checkpoints: deleted {} checkpoints of {} past partition count {}",
+                                r.getDeletedCount(), consumer, partitions);
+                    }
+                })
+                .then()
+                .onErrorResume(e -> {
+                    log.warn("spool checkpoints: could not delete stale checkpoints of {}, will retry: {}", consumer, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private record Pending(String id, String consumer, int partition, int partitions, long offset) {
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.common.spool;
+
+import com.example.common.config.TieredProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded on-disk LRU cache of fixed-size chunks of archived segment objects, filled with ranged GETs.
+ *
+ * Concurrent requests for the same chunk share one download (single flight). Chunks are handed out as
+ * read-only mappings of the cache files; evicting a chunk deletes its file, which leaves mappings that are
+ * still in use valid. The cache survives restarts (files are re-indexed, oldest first).
+ *
+ * Thread-safe.
+ */
+final class SpoolChunkCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolChunkCache.class);
+    private static final String SUFFIX = ".chunk";
+
+    final int chunkBytes;
+    private final S3Client s3;
+    private final String bucket;
+    private final Path dir;
+    private final long maxBytes;
+    private final ExecutorService fetchers;
+
+    // file name -> size, in access order; guarded by this
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private final Map<String, CompletableFuture<ByteBuffer>> inflight = new ConcurrentHashMap<>();
+
+    SpoolChunkCache(S3Client s3, String bucket, TieredProps props) throws IOException {
+        if (props.chunkBytes() <= 0) throw new IllegalArgumentException("chunkBytes must be > 0: " + props.chunkBytes());
+        if (props.fetchConcurrency() <= 0) throw new IllegalArgumentException("fetchConcurrency must be > 0: " + props.fetchConcurrency());
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.chunkBytes = props.chunkBytes();
+        this.maxBytes = props.cacheBytes();
+        this.dir = Paths.get(props.cacheDir());
+        Files.createDirectories(dir);
+
+        AtomicInteger n = new AtomicInteger();
+        this.fetchers = Executors.newFixedThreadPool(props.fetchConcurrency(), r -> {
+            Thread t = new Thread(r, "spool-chunk-fetch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        reindex();
+    }
+
+    /**
+     * Chunk chunkIndex of the object key (objectBytes long) as a read-only buffer; downloaded if not cached.
+     */
+    CompletableFuture<ByteBuffer> chunk(String key, long objectBytes, int chunkIndex) {
+        String name = fileName(key, chunkIndex);
+        ByteBuffer cached = mapIfCached(name);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        CompletableFuture<ByteBuffer> mine = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = inflight.putIfAbsent(name, mine);
+        if (running != null) return running;
+
+        fetchers.execute(() -> {
+            try {
+                ByteBuffer b = mapIfCached(name); // another flight may have finished in between
+                mine.complete(b != null ? b : fetch(key, objectBytes, chunkIndex, name));
+            } catch (Throwable t) {
+                mine.completeExceptionally(t);
+            } finally {
+                inflight.remove(name, mine);
+            }
+        });
+        return mine;
+    }
+
+    @Override
+    public void close() {
+        fetchers.shutdownNow();
+    }
+
+    // ----------------- internals -----------------
+
+    private ByteBuffer fetch(String key, long objectBytes, int chunkIndex, String name) throws IOException {
+        long from = (long) chunkIndex * chunkBytes;
+        long to = Math.min(from + chunkBytes, objectBytes) - 1;
+        if (from > to) throw new IOException("chunk " + chunkIndex + " is past the end of " + key);
+
+        Path tmp = dir.resolve(name + "." + Thread.currentThread().threadId() + ".tmp");
+        Files.deleteIfExists(tmp);
+        s3.getObject(r -> r.bucket(bucket).key(key).range("bytes=" + from + "-" + to), ResponseTransformer.toFile(tmp));
+        long size = Files.size(tmp);
+        if (size != to - from + 1) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("short ranged GET of " + key + " chunk " + chunkIndex + ": " + size + " bytes");
+        }
+        Path file = dir.resolve(name);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        ByteBuffer b = map(file);
+        synchronized (this) {
+            Long prev = lru.put(name, size);
+            totalBytes += size - (prev == null ? 0 : prev);
+            evict();
+        }
+        return b;
+    }
+
+    private ByteBuffer mapIfCached(String name) {
+        synchronized (this) {
+            if (lru.get(name) == null) return null; // get() also marks it recently used
+        }
+        try {
+            return map(dir.resolve(name));
+        } catch (NoSuchFileException e) {
+            return null; // evicted meanwhile
+        } catch (IOException e) {
+            log.warn("spool chunk cache: cannot map {}: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).asReadOnlyBuffer();
+        }
+    }
+
+    /** Caller holds the lock. Keeps at least the newest chunk even if it alone exceeds the bound. */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            it.remove();
+            totalBytes -= e.getValue();
+            try {
+                Files.deleteIfExists(dir.resolve(e.getKey()));
+            } catch (IOException ex) {
+                log.warn("spool chunk cache: cannot delete {}: {}", e.getKey(), ex.getMessage());
+            }
+        }
+    }
+
+    private synchronized void reindex() throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.toList();
+        }
+        for (Path p : files) {
+            if (p.getFileName().toString().endsWith(".tmp")) Files.deleteIfExists(p);
+        }
+        List<Path> chunks = files.stream()
+                .filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                .sorted(Comparator.comparingLong(SpoolChunkCache::lastModified))
+                .toList();
+        for (Path p : chunks) {
+            long size = Files.size(p);
+            lru.put(p.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The key is URL-encoded (no '/' or '@' left, and distinct keys stay distinct), and the chunk size is
+     * part of the name, so chunks cached with another chunkBytes are never mixed up.
+     */
+    private String fileName(String key, int chunkIndex) {
+        return URLEncoder.encode(key, StandardCharsets.UTF_8) + "@" + chunkBytes + "." + chunkIndex + SUFFIX;
+    }
+}
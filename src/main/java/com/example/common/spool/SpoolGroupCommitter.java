@@ -0,0 +1,229 @@
+package com.example.common.spool;
+
+import com.example.common.config.SpoolProps;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit on top of SpoolWriter: appends go to the mapped segment right away, and one force()
+ * (fsync) makes a whole batch of them durable. Each append's Mono completes with the record offset
+ * once the batch containing it is on disk. Appends run one after the other on a dedicated thread.
+ *
+ * A batch is forced when maxBatchBytes are waiting or when the oldest waiting append has waited maxWaitMs,
+ * whichever comes first. Reports batch size (records and bytes) and fsync latency as histograms:
+ * spool.group_commit.batch.records, spool.group_commit.batch.bytes, spool.group_commit.fsync.
+ */
+public final class SpoolGroupCommitter implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolGroupCommitter.class);
+
+    private final SpoolWriter writer;
+    private final long maxBatchBytes;
+    private final long maxWaitNanos;
+
+    private final DistributionSummary batchRecords;
+    private final DistributionSummary batchBytes;
+    private final Timer fsyncTimer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wake = lock.newCondition();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long oldestWaitSince;
+    private long flushedBytes;
+    // written under both gate and lock; appends check it under gate, the flusher under lock
+    private boolean running = true;
+    private final Object gate = new Object();
+
+    private final Thread flusher;
+    private final Scheduler appender = Schedulers.newSingle("spool-append", true);
+
+    public SpoolGroupCommitter(SpoolWriter writer, SpoolProps props, MeterRegistry registry) {
+        this.writer = Objects.requireNonNull(writer, "writer");
+        SpoolProps.GroupCommit gc = Objects.requireNonNull(props, "props").groupCommit();
+        if (gc.maxBatchBytes() <= 0) throw new IllegalArgumentException("groupCommit.maxBatchBytes must be > 0");
+        if (gc.maxWaitMs() < 0) throw new IllegalArgumentException("groupCommit.maxWaitMs must be >= 0");
+        this.maxBatchBytes = gc.maxBatchBytes();
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(gc.maxWaitMs());
+
+        this.batchRecords = DistributionSummary.builder("spool.group_commit.batch.records")
+                .description("Appends made durable by one fsync")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.batchBytes = DistributionSummary.builder("spool.group_commit.batch.bytes")
+                .baseUnit("bytes")
+                .description("Spool bytes made durable by one fsync")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.fsyncTimer = Timer.builder("spool.group_commit.fsync")
+                .description("Latency of forcing the active spool segment")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        this.flushedBytes = writer.bytesWritten();
+        this.flusher = new Thread(this::runFlusher, "spool-group-commit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Appends a record and completes with its offset once it is durable. The append itself runs on the
+     * committer's append thread, never on the subscriber's: a roll forces the old segment, which must not
+     * stall an event loop.
+     */
+    public Mono<Long> append(SpoolWriter.MetaEncoder meta, ByteBuffer body, long receivedAtMillis) {
+        return append(() -> writer.append(meta, body, receivedAtMillis));
+    }
+
+    /**
+     * Same as append(MetaEncoder, ...) for an already encoded meta.
+     */
+    public Mono<Long> append(ByteBuffer meta, ByteBuffer body, long receivedAtMillis) {
+        return append(() -> writer.append(meta, body, receivedAtMillis));
+    }
+
+    private Mono<Long> append(Append append) {
+        return Mono.<Long>create(sink -> {
+            // checked before writing: a record that is in the spool must not be reported as failed,
+            // or the client's retry would store it twice
+            synchronized (gate) {
+                if (!running) {
+                    sink.error(new IOException("spool group committer is closed"));
+                    return;
+                }
+                long offset;
+                try {
+                    offset = append.run();
+                } catch (IOException | RuntimeException e) {
+                    sink.error(e);
+                    return;
+                }
+                enqueue(new Waiter(offset, sink));
+            }
+        }).subscribeOn(appender);
+    }
+
+    /** Caller holds gate, with running true. */
+    private void enqueue(Waiter w) {
+        lock.lock();
+        try {
+            if (waiters.isEmpty()) {
+                oldestWaitSince = System.nanoTime();
+                wake.signal();
+            }
+            waiters.add(w);
+            if (writer.bytesWritten() - flushedBytes >= maxBatchBytes) wake.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            lock.lock();
+            try {
+                while (running && waiters.isEmpty()) wake.awaitUninterruptibly();
+                if (!running && waiters.isEmpty()) return;
+
+                // let the batch grow until it is big enough or the oldest append has waited long enough
+                while (running) {
+                    long left = oldestWaitSince + maxWaitNanos - System.nanoTime();
+                    if (left <= 0 || writer.bytesWritten() - flushedBytes >= maxBatchBytes) break;
+                    try {
+                        wake.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            forceAndComplete();
+        }
+    }
+
+    private void forceAndComplete() {
+        long bytesBefore = writer.bytesWritten();
+        long durable;
+        Exception failure = null;
+        long t0 = System.nanoTime();
+        try {
+            durable = writer.flush();
+        } catch (IOException | RuntimeException e) {
+            // anything escaping here would kill the flusher and leave every append waiting forever
+            failure = e;
+            durable = Long.MAX_VALUE; // fail everything that is waiting
+        }
+        fsyncTimer.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+
+        List<Waiter> done = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!waiters.isEmpty() && waiters.peek().offset < durable) done.add(waiters.poll());
+            if (!waiters.isEmpty()) oldestWaitSince = System.nanoTime();
+            batchBytes.record(Math.max(0, bytesBefore - flushedBytes));
+            flushedBytes = bytesBefore;
+        } finally {
+            lock.unlock();
+        }
+        batchRecords.record(done.size());
+
+        if (failure != null) log.error("spool group commit: force failed, failing {} appends", done.size(), failure);
+        for (Waiter w : done) {
+            if (failure == null) w.sink.success(w.offset);
+            else w.sink.error(failure);
+        }
+    }
+
+    /**
+     * Stops the flusher after a final force of everything appended so far.
+     */
+    @Override
+    public void close() {
+        synchronized (gate) {
+            lock.lock();
+            try {
+                running = false;
+                wake.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        appender.dispose();
+    }
+
+    @FunctionalInterface
+    private interface Append {
+        long run() throws IOException;
+    }
+
+    private record Waiter(long offset, MonoSink<Long> sink) implements Comparable<Waiter> {
+        @Override
+        public int compareTo(Waiter o) {
+            return Long.compare(offset, o.offset);
+        }
+    }
+}
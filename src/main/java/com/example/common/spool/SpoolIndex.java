@@ -0,0 +1,214 @@
+package com.example.common.spool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Sparse offset index of one spool segment: the file position of every Nth record (relative offset
+ * 0, N, 2N, ...). A lookup binary-searches the index and then hops at most N-1 frames.
+ *
+ * File layout (big-endian), next to the segment as %020d.idx:
+ *   header (16 bytes): int32 magic 'HKIX', int32 version, int32 interval, int32 entryCount
+ *   entries: int32 relativeOffset, int32 position
+ *   int32 CRC32 of header + entries
+ *
+ * The file is a cache: it is written when a segment is sealed (and on writer close), and a missing,
+ * stale or corrupt file is simply rebuilt by scanning the segment once. Entries are also verified
+ * against the frame they point to before use.
+ *
+ * Not thread-safe; callers synchronize on the instance.
+ */
+final class SpoolIndex {
+    private static final Logger log = LoggerFactory.getLogger(SpoolIndex.class);
+
+    static final int MAGIC = 0x484B4958; // 'H''K''I''X'
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int ENTRY_BYTES = 8;
+    static final String SUFFIX = ".idx";
+
+    final long baseOffset;
+    final int interval;
+
+    private int[] relOffsets;
+    private int[] positions;
+    private int count;
+
+    SpoolIndex(long baseOffset, int interval) {
+        if (interval <= 0) throw new IllegalArgumentException("index interval must be > 0: " + interval);
+        this.baseOffset = baseOffset;
+        this.interval = interval;
+        this.relOffsets = new int[64];
+        this.positions = new int[64];
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Records the position of offset if it falls on the interval and is past the last entry.
+     */
+    void maybeAdd(long offset, int position) {
+        long rel = offset - baseOffset;
+        if (rel < 0 || rel > Integer.MAX_VALUE || rel % interval != 0) return;
+        if (count > 0 && rel <= relOffsets[count - 1]) return;
+        if (count == relOffsets.length) {
+            relOffsets = Arrays.copyOf(relOffsets, count * 2);
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        relOffsets[count] = (int) rel;
+        positions[count] = position;
+        count++;
+    }
+
+    /**
+     * Index of the last entry whose offset is <= offset, or -1 (scan from the first frame).
+     */
+    int floor(long offset) {
+        long rel = offset - baseOffset;
+        if (rel < 0 || count == 0) return -1;
+        int key = (int) Math.min(rel, Integer.MAX_VALUE);
+        int i = Arrays.binarySearch(relOffsets, 0, count, key);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    long offsetAt(int i) {
+        return baseOffset + relOffsets[i];
+    }
+
+    int positionAt(int i) {
+        return positions[i];
+    }
+
+    // ----------------- building -----------------
+
+    /**
+     * Builds the index by hopping over the segment's frames, stopping at the end of written data
+     * or at the first frame that does not look valid.
+     */
+    static SpoolIndex build(SpoolSegment seg, int interval) {
+        SpoolIndex idx = new SpoolIndex(seg.baseOffset, interval);
+        idx.rebuild(seg);
+        return idx;
+    }
+
+    /** Discards all entries and re-scans the segment (see build()). */
+    void rebuild(SpoolSegment seg) {
+        count = 0;
+        long offset = seg.baseOffset;
+        int pos = SpoolSegment.HEADER_BYTES;
+        while (true) {
+            int frameLen = seg.frameLen(pos);
+            if (frameLen == 0 || !seg.frameLooksValid(pos, frameLen, offset)) break;
+            maybeAdd(offset, pos);
+            offset++;
+            pos = SpoolSegment.next(pos, frameLen);
+        }
+    }
+
+    /**
+     * Loads the segment's index file; rebuilds it when the file is missing or does not check out.
+     * A rebuilt index is written back only for sealed segments (the active one keeps growing).
+     */
+    static SpoolIndex loadOrBuild(SpoolSegment seg, int interval, boolean sealed) {
+        Path file = pathFor(seg.path);
+        SpoolIndex idx = null;
+        try {
+            idx = read(file, seg);
+        } catch (NoSuchFileException e) {
+            // not written yet
+        } catch (IOException e) {
+            log.warn("spool: ignoring index {}: {}", file.getFileName(), e.getMessage());
+        }
+        if (idx != null) return idx;
+
+        idx = build(seg, interval);
+        if (sealed) {
+            try {
+                idx.write(file);
+            } catch (IOException e) {
+                log.warn("spool: could not write index {}", file.getFileName(), e);
+            }
+        }
+        return idx;
+    }
+
+    // ----------------- file I/O -----------------
+
+    static Path pathFor(Path segmentPath) {
+        String n = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(n.substring(0, n.length() - SpoolSegment.SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * Writes the index next to its segment (temp file + atomic rename, so readers never see half a file).
+     */
+    void write(Path file) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + count * ENTRY_BYTES + 4).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(MAGIC).putInt(VERSION).putInt(interval).putInt(count);
+        for (int i = 0; i < count; i++) b.putInt(relOffsets[i]).putInt(positions[i]);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, b.position());
+        b.putInt((int) crc.getValue());
+        b.flip();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static SpoolIndex read(Path file, SpoolSegment seg) throws IOException {
+        return parse(Files.readAllBytes(file), seg.baseOffset, seg.capacity);
+    }
+
+    /**
+     * Parses index file bytes of the segment starting at baseOffset whose frames lie below limit.
+     */
+    static SpoolIndex parse(byte[] bytes, long baseOffset, int limit) throws IOException {
+        if (bytes.length < HEADER_BYTES + 4) throw new IOException("truncated index");
+        ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+
+        if (b.getInt() != MAGIC) throw new IOException("bad index magic");
+        int version = b.getInt();
+        if (version != VERSION) throw new IOException("unsupported index version " + version);
+        int interval = b.getInt();
+        int n = b.getInt();
+        if (interval <= 0 || n < 0 || (long) HEADER_BYTES + (long) n * ENTRY_BYTES + 4 != bytes.length) {
+            throw new IOException("bad index header");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != b.getInt(bytes.length - 4)) throw new IOException("index checksum mismatch");
+
+        SpoolIndex idx = new SpoolIndex(baseOffset, interval);
+        int prevRel = -1;
+        int prevPos = SpoolSegment.HEADER_BYTES - 1;
+        for (int i = 0; i < n; i++) {
+            int rel = b.getInt();
+            int pos = b.getInt();
+            if (rel <= prevRel || rel % interval != 0 || pos <= prevPos || (pos & 7) != 0 || pos >= limit) {
+                throw new IOException("index entries out of order at " + i);
+            }
+            idx.maybeAdd(baseOffset + rel, pos);
+            prevRel = rel;
+            prevPos = pos;
+        }
+        return idx;
+    }
+}
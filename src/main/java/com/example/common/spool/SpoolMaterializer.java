@@ -0,0 +1,439 @@
+package com.example.common.spool;
+
+import com.example.common.config.MaterializerProps;
+import com.example.common.dedup.Deduplicator;
+import com.example.common.persistence.dao.EventBacklog;
+import com.example.common.persistence.entity.EventDoc;
+import com.example.common.persistence.entity.SpoolCheckpointDoc;
+import com.example.common.util.DedupHash;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Materializes spool records into the events collection, in parallel partitions.
+ *
+ * One sequential reader decodes each record's meta and routes it by machine (host when machine is
+ * empty) to one of N partitions, so records of the same key stay in order. Each partition collects
+ * batches (batchSize or batchWaitMs) and writes them one after the other as one unordered bulk of
+ * upserts; partitions write concurrently, so throughput scales with partitions up to what Mongo takes.
+ *
+ * Writes are idempotent: the EventDoc id comes from the spool offset and the upsert only sets fields
+ * on insert, so a record seen again after a crash leaves an existing document (and whatever the event
+ * processors changed on it) alone.
+ *
+ * Each partition has its own checkpoint in SpoolCheckpointStore: the offset below which all of its records
+ * are written. It is committed after every batch (the store coalesces the writes) and, for idle partitions,
+ * advanced with the reader every checkpointIntervalMs. On start, reading resumes from the smallest
+ * checkpoint and each partition skips what it has already written.
+ */
+public final class SpoolMaterializer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolMaterializer.class);
+
+    /**
+     * Builds the document for one record; meta is the decoded record meta.
+     */
+    @FunctionalInterface
+    public interface DocumentMapper {
+        EventDoc toDocument(SpoolRecord record, Map<String, Object> meta);
+    }
+
+    private final SpoolReader reader;
+    private final ReactiveMongoTemplate mongo;
+    private final SpoolCheckpointStore checkpoints;
+    private final MaterializerProps props;
+    private final DocumentMapper mapper;
+    private final Deduplicator dedup;
+    private final EventBacklog backlog;
+    private final Partition[] partitions;
+
+    // offset (exclusive) up to which records have been handed to partitions
+    private volatile long readPosition;
+    private Disposable running;
+
+    public SpoolMaterializer(SpoolReader reader,
+                             ReactiveMongoTemplate mongo,
+                             SpoolCheckpointStore checkpoints,
+                             MaterializerProps props,
+                             DocumentMapper mapper) {
+        this(reader, mongo, checkpoints, props, mapper, null);
+    }
+
+    /**
+     * With dedup (may be null), each batch's documents get EventDoc.duplicate from one batched dedup
+     * check (Deduplicator.duplicates()) before they are written.
+     */
+    public SpoolMaterializer(SpoolReader reader,
+                             ReactiveMongoTemplate mongo,
+                             SpoolCheckpointStore checkpoints,
+                             MaterializerProps props,
+                             DocumentMapper mapper,
+                             Deduplicator dedup) {
+        this(reader, mongo, checkpoints, props, mapper, dedup, null);
+    }
+
+    /**
+     * With backlog (may be null), the events each batch inserts are added to the maintained backlog counter.
+     */
+    public SpoolMaterializer(SpoolReader reader,
+                             ReactiveMongoTemplate mongo,
+                             SpoolCheckpointStore checkpoints,
+                             MaterializerProps props,
+                             DocumentMapper mapper,
+                             Deduplicator dedup,
+                             EventBacklog backlog) {
+        this.dedup = dedup;
+        this.backlog = backlog;
+        this.reader = Objects.requireNonNull(reader, "reader");
+        this.mongo = Objects.requireNonNull(mongo, "mongo");
+        this.checkpoints = Objects.requireNonNull(checkpoints, "checkpoints");
+        this.props = Objects.requireNonNull(props, "props");
+        this.mapper = Objects.requireNonNull(mapper, "mapper");
+        if (props.partitions() <= 0) throw new IllegalArgumentException("partitions must be > 0: " + props.partitions());
+        if (props.batchSize() <= 0) throw new IllegalArgumentException("batchSize must be > 0: " + props.batchSize());
+
+        this.partitions = new Partition[props.partitions()];
+        for (int i = 0; i < partitions.length; i++) partitions[i] = new Partition(i);
+    }
+
+    /**
+     * Mapper for freshly received events: status NEW, id = spool offset, SHA-256 dedup key of the body,
+     * expireAt = receivedAt + ttl.
+     */
+    public static DocumentMapper newEvents(Duration ttl) {
+        return newEvents(ttl, DedupHash.SHA256);
+    }
+
+    /**
+     * Same, with the dedup key computed by hash (see AppDoc.dedupHash).
+     */
+    public static DocumentMapper newEvents(Duration ttl, DedupHash hash) {
+        return newEvents(ttl, hash, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same, but bodies larger than inlineMaxBytes are not copied into the document: it references the
+     * spool record instead (payloadRef, see SpoolPayloads), which already holds the body. Spool retention
+     * must run with RetentionProps.payloadRefs, or those references outlive their records.
+     */
+    public static DocumentMapper newEvents(Duration ttl, DedupHash hash, int inlineMaxBytes) {
+        Objects.requireNonNull(ttl, "ttl");
+        Objects.requireNonNull(hash, "hash");
+        return (r, meta) -> {
+            int length = r.body().remaining();
+            byte[] payload = null;
+            String payloadRef = null;
+            if (length > inlineMaxBytes) {
+                payloadRef = SpoolPayloads.ref(r.offset());
+            } else {
+                payload = new byte[length];
+                r.body().duplicate().get(payload);
+            }
+            Instant receivedAt = Instant.ofEpochMilli(r.receivedAtMillis());
+            return new EventDoc(
+                    String.valueOf(r.offset()),
+                    "NEW",
+                    receivedAt,
+                    Instant.now(),
+                    meta,
+                    hash.hash(r.body()),
+                    false,
+                    payload,
+                    receivedAt.plus(ttl),
+                    payloadRef,
+                    (long) length
+            );
+        };
+    }
+
+    public synchronized void start() {
+        if (running != null) return;
+
+        Disposable pipeline = resumeOffset()
+                .flatMapMany(this::pipeline)
+                .subscribe(
+                        v -> {
+                        },
+                        e -> log.error("spool materializer {} stopped", props.consumer(), e)
+                );
+        Disposable idle = Flux.interval(Duration.ofMillis(props.checkpointIntervalMs()))
+                .subscribe(t -> commitAll());
+        running = Disposables.composite(pipeline, idle);
+    }
+
+    /**
+     * Stops reading and persists the partitions' checkpoints one last time.
+     */
+    @Override
+    public synchronized void close() {
+        if (running == null) return;
+        running.dispose();
+        running = null;
+        commitAll();
+        try {
+            checkpoints.flush().block(Duration.ofSeconds(10));
+        } catch (RuntimeException e) {
+            log.warn("spool materializer {}: final checkpoint failed: {}", props.consumer(), e.getMessage());
+        }
+    }
+
+    // ----------------- pipeline -----------------
+
+    private Flux<Void> pipeline(long from) {
+        readPosition = from;
+        log.info("spool materializer {}: starting at offset {} with {} partitions", props.consumer(), from, partitions.length);
+
+        return reader.records(from, Duration.ofMillis(props.pollIntervalMs()))
+                .<Item>handle((r, sink) -> {
+                    Item item = route(r);
+                    if (item != null) sink.next(item);
+                })
+                .groupBy(Item::partition)
+                .flatMap(g -> g
+                                .bufferTimeout(props.batchSize(), Duration.ofMillis(props.batchWaitMs()), true)
+                                .concatMap(batch -> write(partitions[g.key()], batch)),
+                        partitions.length);
+    }
+
+    /**
+     * Decodes the meta and picks the partition; null when the partition already has the record.
+     * Runs on the single reader thread.
+     */
+    private Item route(SpoolRecord r) {
+        Map<String, Object> meta;
+        try {
+            meta = reader.decodeMeta(r);
+        } catch (IOException e) {
+            // the frame passed its checksum, so this is not a torn write; nothing to retry
+            log.error("spool materializer {}: skipping record {}: undecodable meta: {}", props.consumer(), r.offset(), e.getMessage());
+            readPosition = r.nextOffset();
+            return null;
+        }
+
+        Partition p = partitions[partitionOf(meta)];
+        if (r.offset() < p.done) {
+            readPosition = r.nextOffset();
+            return null;
+        }
+        p.inflight.incrementAndGet(); // before readPosition moves past it, see Partition.checkpoint()
+        readPosition = r.nextOffset();
+        return new Item(p.index, r, meta);
+    }
+
+    private int partitionOf(Map<String, Object> meta) {
+        Object key = meta.get("machine");
+        if (key == null || "".equals(key)) key = meta.get("host");
+        int h = key == null ? 0 : key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), partitions.length);
+    }
+
+    private Mono<Void> write(Partition p, List<Item> batch) {
+        return Mono.defer(() -> markDuplicates(batch.stream().map(it -> mapper.toDocument(it.record, it.meta)).toList()))
+                .flatMap(docs -> {
+                    ReactiveBulkOperations ops = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, EventDoc.class);
+                    for (EventDoc doc : docs) {
+                        ops.upsert(Query.query(Criteria.where("_id").is(doc.id())), insertOnly(doc));
+                    }
+                    return ops.execute();
+                })
+                // only upserts inserted a document; the others already existed (replay)
+                .map(res -> res.getUpserts().size())
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(500))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .filter(SpoolMaterializer::isTransient)
+                        .doBeforeRetry(s -> log.warn("spool materializer {}: partition {} bulk write failed, retrying: {}",
+                                props.consumer(), p.index, s.failure().getMessage())))
+                .onErrorResume(e -> Mono.just(skipped(p, batch, e)))
+                .doOnSuccess(inserted -> {
+                    p.written(batch.get(batch.size() - 1).record.nextOffset(), batch.size());
+                    commit(p);
+                    if (backlog != null && inserted > 0) countInserted(inserted);
+                })
+                .then();
+    }
+
+    /**
+     * A failure that retrying cannot fix (a document Mongo rejects, a mapper bug): the batch is logged and
+     * skipped, so that one bad record does not hold up its partition forever. Returns how many documents
+     * the bulk inserted anyway (unordered bulks write the documents that were not rejected).
+     */
+    private int skipped(Partition p, List<Item> batch, Throwable e) {
+        MongoBulkWriteException bulk = cause(e, MongoBulkWriteException.class);
+        if (bulk != null) {
+            for (BulkWriteError err : bulk.getWriteErrors()) {
+                log.error("spool materializer {}: partition {} skipping record {}: {}",
+                        props.consumer(), p.index, batch.get(err.getIndex()).record.offset(), err.getMessage());
+            }
+            return bulk.getWriteResult().getUpserts().size();
+        }
+        log.error("spool materializer {}: partition {} skipping records {}..{}: write failed permanently",
+                props.consumer(), p.index, batch.get(0).record.offset(), batch.get(batch.size() - 1).record.offset(), e);
+        return 0;
+    }
+
+    /** Connection, timeout and retryable-write failures; anything else fails the same way again. */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DataAccessResourceFailureException || t instanceof TransientDataAccessException
+                || t instanceof MongoSocketException || t instanceof MongoTimeoutException
+                || t instanceof TimeoutException || t instanceof IOException) {
+                return true;
+            }
+            if (t instanceof MongoException m
+                && (m.hasErrorLabel("RetryableWriteError")
+                    || m.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T extends Throwable> T cause(Throwable e, Class<T> type) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (type.isInstance(t)) return type.cast(t);
+        }
+        return null;
+    }
+
+    /**
+     * Sets duplicate on the batch's documents, with one dedup round trip for the whole batch. The
+     * dedup records carry the event ids, so a batch written again after a crash is not marked.
+     */
+    private Mono<List<EventDoc>> markDuplicates(List<EventDoc> docs) {
+        if (dedup == null) return Mono.just(docs);
+        List<Deduplicator.Item> items = docs.stream()
+                .map(d -> new Deduplicator.Item(d.hash(), d.receivedAt(), d.id()))
+                .toList();
+        return dedup.duplicates(items)
+                .map(dup -> {
+                    List<EventDoc> out = new ArrayList<>(docs.size());
+                    for (int i = 0; i < docs.size(); i++) out.add(docs.get(i).withDuplicate(dup.get(i)));
+                    return out;
+                });
+    }
+
+    private void countInserted(int n) {
+        backlog.added(n).subscribe(null, e -> log.warn("spool materializer {}: backlog update failed: {}", props.consumer(), e.getMessage()));
+    }
+
+    private Update insertOnly(EventDoc doc) {
+        Document d = new Document();
+        mongo.getConverter().write(doc, d);
+        Update u = new Update();
+        d.forEach((k, v) -> {
+            if (!"_id".equals(k)) u.setOnInsert(k, v);
+        });
+        return u;
+    }
+
+    // ----------------- checkpoints -----------------
+
+    /**
+     * Where to start reading: the smallest partition checkpoint, provided every partition of the count the
+     * checkpoints were written with has one (a partition without one may not have written anything, so the
+     * others say nothing about it); otherwise the start of the spool. Checkpoints written with another
+     * partition count cannot be used per partition (routing differs), so then every partition restarts
+     * from the smallest one.
+     */
+    private Mono<Long> resumeOffset() {
+        return checkpoints.load(props.consumer())
+                .map(byPartition -> List.copyOf(byPartition.values()))
+                .flatMap(docs -> Mono.fromCallable(() -> {
+                    long first = Math.max(reader.firstOffset(), 0);
+
+                    long committed = SpoolCheckpointStore.committed(docs);
+                    boolean complete = committed >= 0;
+                    if (!docs.isEmpty() && !complete) {
+                        log.warn("spool materializer {}: checkpoints do not cover every partition, starting at {}", props.consumer(), first);
+                    }
+                    long from = complete ? committed : first;
+                    if (from < first) {
+                        log.warn("spool materializer {}: checkpoint {} is older than the spool, starting at {}", props.consumer(), from, first);
+                        from = first;
+                    }
+
+                    boolean usable = complete && docs.get(0).partitions() == partitions.length;
+                    for (Partition p : partitions) p.resume(from);
+                    if (usable) {
+                        for (SpoolCheckpointDoc d : docs) {
+                            if (d.partition() >= 0 && d.partition() < partitions.length) {
+                                partitions[d.partition()].resume(Math.max(d.offset(), from));
+                            }
+                        }
+                    }
+                    return from;
+                }).subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    private void commit(Partition p) {
+        checkpoints.commit(props.consumer(), p.index, partitions.length, p.checkpoint());
+    }
+
+    private void commitAll() {
+        for (Partition p : partitions) commit(p);
+    }
+
+    private final class Partition {
+        final int index;
+        // records routed here and not written yet
+        final AtomicLong inflight = new AtomicLong();
+        // every record of this partition below done has been written (batches complete in order)
+        volatile long done;
+
+        Partition(int index) {
+            this.index = index;
+        }
+
+        void resume(long offset) {
+            done = offset;
+        }
+
+        void written(long upTo, int count) {
+            done = Math.max(done, upTo);
+            inflight.addAndGet(-count);
+        }
+
+        /**
+         * Offset to persist. With nothing in flight, every record of this partition below readPosition
+         * has been written: readPosition is read before inflight, and route() increments inflight before
+         * moving readPosition past a record.
+         */
+        long checkpoint() {
+            long pos = readPosition;
+            return inflight.get() == 0 ? Math.max(done, pos) : done;
+        }
+    }
+
+    private record Item(int partition, SpoolRecord record, Map<String, Object> meta) {
+    }
+}
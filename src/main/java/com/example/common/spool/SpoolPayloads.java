@@ -0,0 +1,63 @@
+package com.example.common.spool;
+
+import com.example.common.persistence.entity.EventDoc;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Event bodies, wherever they are stored: inline in EventDoc.payload, or out of line in the spool
+ * record the event was materialized from (payloadRef "spool:<offset>").
+ *
+ * Out-of-line bodies are read back on demand as zero-copy slices of the spool mapping (or of the S3
+ * chunk cache once the segment is archived, see SpoolArchiveReader), so the events collection only
+ * carries the reference. Retention must then run with payloadRefs, so that a segment is only deleted
+ * locally once it is archived and its bodies stay readable.
+ */
+public final class SpoolPayloads {
+    private static final String SPOOL_PREFIX = "spool:";
+
+    private final SpoolReader reader;
+
+    public SpoolPayloads(SpoolReader reader) {
+        this.reader = Objects.requireNonNull(reader, "reader");
+    }
+
+    static String ref(long offset) {
+        return SPOOL_PREFIX + offset;
+    }
+
+    /**
+     * The event's body (read-only); errors if an out-of-line body is gone or does not match the document.
+     */
+    public Mono<ByteBuffer> body(EventDoc doc) {
+        if (doc.payloadRef() == null) {
+            return Mono.justOrEmpty(doc.payload()).map(p -> ByteBuffer.wrap(p).asReadOnlyBuffer());
+        }
+        if (!doc.payloadRef().startsWith(SPOOL_PREFIX)) {
+            return Mono.error(new IOException("unsupported payload reference " + doc.payloadRef() + " of event " + doc.id()));
+        }
+        return Mono.fromCallable(() -> read(doc))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private ByteBuffer read(EventDoc doc) throws IOException {
+        long offset;
+        try {
+            offset = Long.parseLong(doc.payloadRef().substring(SPOOL_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad payload reference " + doc.payloadRef() + " of event " + doc.id());
+        }
+        SpoolRecord r = reader.read(offset);
+        if (r == null) throw new IOException("spool record " + offset + " of event " + doc.id() + " does not exist");
+        ByteBuffer body = r.body();
+        if (doc.payloadLength() != null && body.remaining() != doc.payloadLength()) {
+            throw new IOException("spool record " + offset + " has " + body.remaining() + " body bytes, event " + doc.id()
+                                  + " expects " + doc.payloadLength());
+        }
+        return body;
+    }
+}
@@ -0,0 +1,511 @@
+package com.example.common.spool;
+
+import com.example.common.config.SpoolProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads records from the spool directory written by SpoolWriter, by global offset or sequentially.
+ *
+ * Segments are mapped read-only on first use and shared by all lookups/cursors; records are
+ * zero-copy slices of those mappings. The active segment can be read while it is being written:
+ * only fully published records are visible. Random access goes through each segment's sparse
+ * index (see SpoolIndex), so read(offset) costs a binary search plus a few frame hops.
+ *
+ * With a SpoolArchiveReader, offsets older than the oldest local segment are served from the archived
+ * copies in S3 instead, so reads and cursors go on seamlessly across what retention has deleted.
+ *
+ * Thread-safe. Records returned by a reader must not be used after it is closed.
+ */
+public final class SpoolReader implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolReader.class);
+
+    private final Path dir;
+    private final int indexInterval;
+    private final int readAheadBytes;
+    private final SpoolArchiveReader archive;
+
+    // baseOffset -> mapped segment
+    private final TreeMap<Long, SpoolSegment> segments = new TreeMap<>();
+    // baseOffset -> dictionary rebuilt for HKP3 records that use one
+    private final Map<Long, DictState> dicts = new ConcurrentHashMap<>();
+    // baseOffset -> sparse offset index, loaded (or rebuilt) on first lookup
+    private final Map<Long, SpoolIndex> indexes = new ConcurrentHashMap<>();
+    private boolean closed;
+
+    public SpoolReader(SpoolProps props) {
+        this(props, null);
+    }
+
+    /**
+     * Reader that falls back to archive (may be null) for offsets no longer in the local spool.
+     */
+    public SpoolReader(SpoolProps props, SpoolArchiveReader archive) {
+        Objects.requireNonNull(props, "props");
+        this.archive = archive;
+        this.dir = Paths.get(props.dir());
+        if (props.indexInterval() <= 0) throw new IllegalArgumentException("indexInterval must be > 0: " + props.indexInterval());
+        this.indexInterval = props.indexInterval();
+        if (props.readAheadBytes() < 0) throw new IllegalArgumentException("readAheadBytes must be >= 0: " + props.readAheadBytes());
+        this.readAheadBytes = props.readAheadBytes();
+    }
+
+    /**
+     * Returns the record with the given offset, or null if it has not been written yet.
+     *
+     * @throws IOException if the offset is older than the oldest segment, or the segment or record is corrupt
+     */
+    public SpoolRecord read(long offset) throws IOException {
+        if (archivedOnly(offset)) {
+            SpoolRecord r = archive.read(offset);
+            if (r != null) return r;
+        }
+        SpoolSegment seg = segmentFor(offset, false);
+        SpoolRecord r = seg == null ? null : find(seg, offset);
+        if (r != null) return r;
+
+        // maybe the writer rolled to a segment we have not mapped yet
+        SpoolSegment newer = segmentFor(offset, true);
+        if (newer == null || newer == seg) return null;
+        return find(newer, offset);
+    }
+
+    /**
+     * Sequential cursor starting at fromOffset (which may not be written yet).
+     */
+    public Cursor cursor(long fromOffset) {
+        return new Cursor(fromOffset);
+    }
+
+    /**
+     * Streams records from fromOffset on, following the writer: when the end of written data is reached
+     * the spool is polled again every pollInterval, so the Flux only completes on cancellation or error.
+     *
+     * Records are emitted only as requested (nothing is buffered on the heap), as zero-copy slices of the
+     * mapped segments; they stay valid until the reader is closed. Reading runs on a boundedElastic worker,
+     * and the pages ahead of the cursor (readAheadBytes, crossing into the next segment) are faulted in on
+     * a separate task, so a replay of a backlog does not stall on every page. Damaged records are skipped
+     * as in Cursor.next().
+     */
+    public Flux<SpoolRecord> records(long fromOffset, Duration pollInterval) {
+        Objects.requireNonNull(pollInterval, "pollInterval");
+        return Flux.create(sink -> new Tail(cursor(fromOffset), sink, pollInterval).start());
+    }
+
+    /**
+     * Offset of the oldest record still in the spool, or -1 if there are no segments.
+     */
+    public long firstOffset() throws IOException {
+        long local;
+        synchronized (this) {
+            refresh();
+            local = segments.isEmpty() ? -1 : segments.firstKey();
+        }
+        long archived = archive == null ? -1 : archive.firstOffset();
+        if (archived < 0) return local;
+        return local < 0 ? archived : Math.min(archived, local);
+    }
+
+    /**
+     * Decodes the record's meta. HKP3 records written against a segment dictionary are decoded with
+     * the segment's dictionary, rebuilt from the segment's records on first use.
+     */
+    public Map<String, Object> decodeMeta(SpoolRecord r) throws IOException {
+        if (!Payload.PayloadV3.usesSegmentDictionary(r.meta())) return Payload.decodeMeta(r.meta());
+
+        DictState st = dictionaryFor(r);
+        synchronized (st) {
+            return Payload.decodeMetaWithSize(r.meta(), st.dict).getMeta();
+        }
+    }
+
+    /** Base offsets of the segments currently in the directory, oldest first. */
+    public List<Long> segmentBaseOffsets() throws IOException {
+        synchronized (this) {
+            refresh();
+            return new ArrayList<>(segments.keySet());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        IOException first = null;
+        for (SpoolSegment s : segments.values()) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        segments.clear();
+        dicts.clear();
+        indexes.clear();
+        if (first != null) throw first;
+    }
+
+    // ----------------- cursor -----------------
+
+    /**
+     * Forward iterator over records; next() returns null when it reaches the end of written data
+     * and can be called again later to pick up new records. Records whose CRC32C does not match are
+     * skipped (their length prefix is still usable) and counted in skipped(). Not thread-safe.
+     */
+    public final class Cursor {
+        private long offset;
+        private SpoolSegment seg;
+        private int pos;
+        private long skipped;
+
+        private Cursor(long fromOffset) {
+            this.offset = fromOffset;
+        }
+
+        /** Offset of the record the next call to next() returns. */
+        public long offset() {
+            return offset;
+        }
+
+        /** Number of damaged records skipped so far. */
+        public long skipped() {
+            return skipped;
+        }
+
+        public SpoolRecord next() throws IOException {
+            if (seg == null && archivedOnly(offset)) {
+                SpoolRecord r = archive.read(offset);
+                if (r != null) {
+                    offset++;
+                    return r;
+                }
+            }
+            if (seg == null) {
+                SpoolSegment s = segmentFor(offset, false);
+                if (s == null || !position(s)) {
+                    SpoolSegment newer = segmentFor(offset, true);
+                    if (newer == null || newer == s || !position(newer)) return null;
+                }
+            }
+
+            while (true) {
+                int frameLen = seg.frameLen(pos);
+                if (frameLen == 0) {
+                    // end of this segment's data: either the writer rolled, or there is nothing new yet
+                    SpoolSegment nextSeg = segmentFor(offset, true);
+                    if (nextSeg == null || nextSeg == seg) return null;
+                    if (nextSeg.baseOffset != offset) {
+                        throw new IOException("spool gap: segment " + nextSeg.path.getFileName() + " does not start at offset " + offset);
+                    }
+                    seg = nextSeg;
+                    pos = SpoolSegment.HEADER_BYTES;
+                    frameLen = seg.frameLen(pos);
+                    if (frameLen == 0) return null;
+                }
+                if (!seg.frameLooksValid(pos, frameLen, offset)) {
+                    throw new IOException("corrupt spool frame at " + seg.path.getFileName() + ":" + pos + " (offset " + offset + ")");
+                }
+
+                int at = pos;
+                pos = SpoolSegment.next(at, frameLen);
+                offset++;
+                if (seg.checksumMatches(at, frameLen)) return seg.record(at, frameLen);
+
+                skipped++;
+                log.warn("spool: skipping record {} at {}:{}: checksum mismatch", offset - 1, seg.path.getFileName(), at);
+            }
+        }
+
+        /** Positions the cursor on offset inside s; false if that record is not written yet. */
+        private boolean position(SpoolSegment s) throws IOException {
+            int at = locate(s, offset);
+            if (at < 0) return false;
+            seg = s;
+            pos = at;
+            return true;
+        }
+    }
+
+    /**
+     * Demand-driven pump from a Cursor into a FluxSink. All cursor access happens on one worker
+     * (tasks of a Worker never run concurrently), so the cursor needs no locking.
+     */
+    private final class Tail {
+        private final Cursor cursor;
+        private final FluxSink<SpoolRecord> sink;
+        private final long pollNanos;
+        private final Scheduler.Worker worker = Schedulers.boundedElastic().createWorker();
+
+        // worker-confined
+        private boolean pollScheduled;
+        private SpoolSegment readAheadSeg;
+        private int readAheadTo;
+
+        Tail(Cursor cursor, FluxSink<SpoolRecord> sink, Duration pollInterval) {
+            this.cursor = cursor;
+            this.sink = sink;
+            this.pollNanos = Math.max(pollInterval.toNanos(), 1);
+        }
+
+        void start() {
+            sink.onRequest(n -> worker.schedule(this::drain));
+            sink.onDispose(worker::dispose);
+        }
+
+        private void drain() {
+            try {
+                while (sink.requestedFromDownstream() > 0 && !sink.isCancelled()) {
+                    SpoolRecord r = cursor.next();
+                    if (r == null) {
+                        // caught up with the writer; look again later unless a poll is already pending
+                        if (!pollScheduled) {
+                            pollScheduled = true;
+                            worker.schedule(this::poll, pollNanos, TimeUnit.NANOSECONDS);
+                        }
+                        return;
+                    }
+                    readAhead();
+                    sink.next(r);
+                }
+            } catch (IOException | RuntimeException e) {
+                sink.error(e);
+            }
+        }
+
+        private void poll() {
+            pollScheduled = false;
+            drain();
+        }
+
+        /** Once the cursor is half-way through the prefetched window, faults in the next one. */
+        private void readAhead() {
+            SpoolSegment seg = cursor.seg;
+            if (readAheadBytes == 0 || seg == null) return; // archived records are prefetched by the archive reader
+            int pos = cursor.pos;
+            if (seg == readAheadSeg && pos < readAheadTo - readAheadBytes / 2) return;
+
+            int from = seg == readAheadSeg ? Math.max(pos, readAheadTo) : pos;
+            int to = (int) Math.min((long) pos + readAheadBytes, seg.capacity);
+            readAheadSeg = seg;
+            readAheadTo = to;
+            long spill = (long) pos + readAheadBytes - seg.capacity;
+
+            SpoolSegment nextSeg = null;
+            if (spill > 0) {
+                synchronized (SpoolReader.this) {
+                    var e = segments.higherEntry(seg.baseOffset);
+                    if (e != null) nextSeg = e.getValue();
+                }
+            }
+            SpoolSegment ahead = nextSeg;
+            Schedulers.boundedElastic().schedule(() -> {
+                if (from < to) seg.touch(from, to);
+                if (ahead != null) ahead.touch(SpoolSegment.HEADER_BYTES, (int) Math.min(spill, ahead.capacity));
+            });
+        }
+    }
+
+    // ----------------- internals -----------------
+
+    /**
+     * True if offset is older than every local segment and an archive reader is configured.
+     */
+    private boolean archivedOnly(long offset) throws IOException {
+        if (archive == null) return false;
+        synchronized (this) {
+            if (closed) throw new IOException("spool reader is closed");
+            if (segments.isEmpty()) refresh();
+            if (!segments.isEmpty() && offset >= segments.firstKey()) return false;
+        }
+        return archive.contains(offset);
+    }
+
+    /**
+     * Segment that holds (or would hold) offset: the one with the greatest base offset <= offset.
+     * Null when the directory has no segments. With refresh, newly created segment files are mapped first.
+     *
+     * @throws IOException if offset is older than the oldest segment (e.g. removed by retention)
+     */
+    private SpoolSegment segmentFor(long offset, boolean refresh) throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("spool reader is closed");
+            if (refresh || segments.isEmpty()) refresh();
+            Map.Entry<Long, SpoolSegment> e = segments.floorEntry(offset);
+            if (e == null && !refresh) {
+                refresh();
+                e = segments.floorEntry(offset);
+            }
+            if (e == null) {
+                if (segments.isEmpty()) return null;
+                throw new IOException("offset " + offset + " is older than the oldest spool segment " + segments.firstKey());
+            }
+            return e.getValue();
+        }
+    }
+
+    /**
+     * The record with the given offset in seg, or null if not written yet.
+     *
+     * @throws IOException if the record's checksum does not match
+     */
+    private SpoolRecord find(SpoolSegment seg, long offset) throws IOException {
+        int pos = locate(seg, offset);
+        if (pos < 0) return null;
+        int frameLen = seg.frameLen(pos);
+        if (!seg.checksumMatches(pos, frameLen)) {
+            throw new IOException("spool record " + offset + " is damaged (checksum mismatch at " + seg.path.getFileName() + ":" + pos + ")");
+        }
+        return seg.record(pos, frameLen);
+    }
+
+    /**
+     * Position of the frame with the given offset: binary search in the sparse index, then a short forward scan
+     * (which also extends the index while the segment is still being written). -1 if not written yet.
+     */
+    private int locate(SpoolSegment seg, long offset) throws IOException {
+        SpoolIndex idx = indexFor(seg);
+        synchronized (idx) {
+            int i = idx.floor(offset);
+            if (i >= 0 && !seg.frameLooksValid(idx.positionAt(i), seg.frameLen(idx.positionAt(i)), idx.offsetAt(i))) {
+                log.warn("spool: stale index entry for {} (offset {}), rebuilding", seg.path.getFileName(), idx.offsetAt(i));
+                idx.rebuild(seg);
+                if (isSealed(seg)) idx.write(SpoolIndex.pathFor(seg.path));
+                i = idx.floor(offset);
+            }
+
+            long expected = i >= 0 ? idx.offsetAt(i) : seg.baseOffset;
+            int pos = i >= 0 ? idx.positionAt(i) : SpoolSegment.HEADER_BYTES;
+            while (expected <= offset) {
+                int frameLen = seg.frameLen(pos);
+                if (frameLen == 0) return -1;
+                if (!seg.frameLooksValid(pos, frameLen, expected)) {
+                    throw new IOException("corrupt spool frame at " + seg.path.getFileName() + ":" + pos + " (offset " + expected + ")");
+                }
+                idx.maybeAdd(expected, pos);
+                if (expected == offset) return pos;
+                expected++;
+                pos = SpoolSegment.next(pos, frameLen);
+            }
+            return -1;
+        }
+    }
+
+    private SpoolIndex indexFor(SpoolSegment seg) {
+        SpoolIndex idx = indexes.get(seg.baseOffset);
+        if (idx != null) return idx;
+        // loading may scan the whole segment; do it outside the map's locks, a lost race only costs the scan
+        idx = SpoolIndex.loadOrBuild(seg, indexInterval, isSealed(seg));
+        SpoolIndex prev = indexes.putIfAbsent(seg.baseOffset, idx);
+        return prev != null ? prev : idx;
+    }
+
+    /** A segment is sealed once a newer one exists; only the newest can still grow. */
+    private synchronized boolean isSealed(SpoolSegment seg) {
+        return segments.higherKey(seg.baseOffset) != null;
+    }
+
+    /**
+     * Maps segment files that appeared since the last call and forgets the ones retention deleted
+     * (records already handed out stay readable: the mapping outlives the file). Caller holds the lock.
+     */
+    private void refresh() throws IOException {
+        List<Path> files = SpoolWriter.listSegments(dir);
+        Set<Long> present = new HashSet<>();
+        for (Path p : files) {
+            long base = SpoolSegment.parseBaseOffset(p);
+            if (!segments.containsKey(base)) {
+                try {
+                    segments.put(base, SpoolSegment.open(p, false));
+                } catch (NoSuchFileException e) {
+                    continue; // deleted by retention since the listing
+                }
+            }
+            present.add(base);
+        }
+        for (var it = segments.entrySet().iterator(); it.hasNext(); ) {
+            var e = it.next();
+            if (present.contains(e.getKey())) continue;
+            it.remove();
+            dicts.remove(e.getKey());
+            indexes.remove(e.getKey());
+            e.getValue().close();
+        }
+    }
+
+    /**
+     * The segment's dictionary, replayed at least up to (and including) record r.
+     */
+    private DictState dictionaryFor(SpoolRecord r) throws IOException {
+        SpoolSegment seg;
+        synchronized (this) {
+            seg = segments.get(r.segment());
+        }
+        if (seg == null && archive != null && archive.contains(r.segment())) return archivedDictionaryFor(r);
+        if (seg == null) throw new IOException("segment " + r.segment() + " is not open");
+
+        DictState st = dicts.computeIfAbsent(r.segment(), k -> new DictState(seg.baseOffset));
+        synchronized (st) {
+            while (st.nextOffset <= r.offset()) {
+                int frameLen = seg.frameLen(st.nextPos);
+                if (frameLen == 0 || !seg.frameLooksValid(st.nextPos, frameLen, st.nextOffset)) {
+                    throw new IOException("corrupt spool frame at " + seg.path.getFileName() + ":" + st.nextPos
+                                          + " while rebuilding the segment dictionary");
+                }
+                // a damaged frame may have carried dictionary entries: every index after it would be off
+                if (!seg.checksumMatches(st.nextPos, frameLen)) {
+                    throw new IOException("spool record " + st.nextOffset + " is damaged (checksum mismatch at "
+                                          + seg.path.getFileName() + ":" + st.nextPos + ") while rebuilding the segment dictionary");
+                }
+                SpoolRecord x = seg.record(st.nextPos, frameLen);
+                if (Payload.PayloadV3.usesSegmentDictionary(x.meta())) Payload.PayloadV3.replay(x.meta(), st.dict);
+                st.nextOffset++;
+                st.nextPos = SpoolSegment.next(st.nextPos, frameLen);
+            }
+        }
+        return st;
+    }
+
+    /** Same for a record of an archived segment, replayed through the archive reader. */
+    private DictState archivedDictionaryFor(SpoolRecord r) throws IOException {
+        DictState st = dicts.computeIfAbsent(r.segment(), DictState::new);
+        synchronized (st) {
+            while (st.nextOffset <= r.offset()) {
+                SpoolRecord x = archive.read(st.nextOffset);
+                if (x == null) throw new IOException("archived record " + st.nextOffset + " is missing while rebuilding the segment dictionary");
+                if (Payload.PayloadV3.usesSegmentDictionary(x.meta())) Payload.PayloadV3.replay(x.meta(), st.dict);
+                st.nextOffset++;
+            }
+        }
+        return st;
+    }
+
+    private static final class DictState {
+        final SegmentDictionary dict = new SegmentDictionary();
+        long nextOffset;
+        int nextPos = SpoolSegment.HEADER_BYTES;
+
+        DictState(long baseOffset) {
+            this.nextOffset = baseOffset;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.common.spool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One spool record as stored in a segment.
+ * meta and body are zero-copy, read-only slices of the segment mapping; they stay valid while the
+ * reader that returned them is open.
+ *
+ * @param offset           global record offset (deterministic EventDoc id)
+ * @param receivedAtMillis ingest time recorded by the writer
+ * @param meta             Payload meta (HKP1/HKP2/HKP3)
+ * @param body             raw body bytes
+ * @param segment          base offset of the segment holding the record
+ * @param position         file position of the frame inside that segment
+ */
+public record SpoolRecord(
+        long offset,
+        long receivedAtMillis,
+        ByteBuffer meta,
+        ByteBuffer body,
+        long segment,
+        int position
+) {
+    public long nextOffset() {
+        return offset + 1;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.common.spool;
+
+import com.example.common.config.RetentionProps;
+import com.example.common.config.SpoolProps;
+import com.example.common.persistence.entity.SpoolCheckpointDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Background retention of spool segments: deletes sealed segments whose records every configured
+ * consumer has committed, once they are older than retainMs, or earlier (oldest first) while the
+ * spool is above maxBytes.
+ *
+ * Segments are only ever deleted whole and oldest first, so the spool stays one contiguous offset
+ * range, and a segment some consumer has not fully committed (or, with requireArchived or payloadRefs,
+ * that is not in S3 yet) is never deleted, even over the size limit (that is logged instead). With
+ * payloadRefs, events point at their bodies in the spool, and an archived segment is the only copy
+ * that outlives the local one, so this is what keeps those references from dangling. The newest segment
+ * is never touched, and the writer is never locked: sealed segments are not mapped by it any more.
+ * Deleting a segment also drops its pages from the page cache; readers that still map it keep a valid
+ * mapping until they let it go.
+ */
+public final class SpoolRetention implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolRetention.class);
+
+    private final Path dir;
+    private final RetentionProps props;
+    private final SpoolCheckpointStore checkpoints;
+    private Disposable running;
+
+    public SpoolRetention(SpoolProps spool, RetentionProps props, SpoolCheckpointStore checkpoints) {
+        Objects.requireNonNull(spool, "spool");
+        this.props = Objects.requireNonNull(props, "props");
+        this.checkpoints = Objects.requireNonNull(checkpoints, "checkpoints");
+        if (props.consumers() == null || props.consumers().isEmpty()) {
+            throw new IllegalArgumentException("retention needs at least one consumer to gate deletion");
+        }
+        this.dir = Paths.get(spool.dir());
+    }
+
+    public synchronized void start() {
+        if (running != null) return;
+        running = Flux.interval(Duration.ofMillis(props.intervalMs()))
+                .onBackpressureDrop()
+                .concatMap(t -> runOnce()
+                        .onErrorResume(e -> {
+                            log.error("spool retention failed", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (running != null) running.dispose();
+        running = null;
+    }
+
+    /**
+     * One retention pass.
+     *
+     * @return number of deleted segments
+     */
+    public Mono<Integer> runOnce() {
+        return Flux.fromIterable(props.consumers())
+                // a consumer missing a partition's checkpoint has committed nothing as far as retention knows
+                .concatMap(c -> checkpoints.load(c)
+                        .map(byPartition -> {
+                            long committed = SpoolCheckpointStore.committed(byPartition.values());
+                            if (committed < 0 && !byPartition.isEmpty()) {
+                                log.warn("spool retention: consumer {} holds back deletion, its checkpoints are incomplete ({})",
+                                        c, incompleteness(byPartition));
+                            }
+                            return committed;
+                        }))
+                .reduce(Math::min)
+                .flatMap(committed -> Mono.fromCallable(() -> sweep(committed))
+                        .subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    /** Which partitions lack a checkpoint or have one written with another partition count. */
+    private static String incompleteness(Map<Integer, SpoolCheckpointDoc> byPartition) {
+        int count = byPartition.values().stream().mapToInt(SpoolCheckpointDoc::partitions).max().orElse(0);
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (!byPartition.containsKey(i)) missing.add(i);
+        }
+        List<String> mismatched = byPartition.values().stream()
+                .filter(d -> d.partitions() != count)
+                .map(d -> d.partition() + " (of " + d.partitions() + ")")
+                .toList();
+        return "partition count " + count + ", missing " + missing + ", other count " + mismatched;
+    }
+
+    /**
+     * Deletes what may go, given that every consumer has committed all records below committed.
+     */
+    private int sweep(long committed) throws IOException {
+        List<Path> segments = SpoolWriter.listSegments(dir);
+        if (segments.size() < 2) return 0;
+
+        long total = 0;
+        for (Path p : segments) total += Files.size(p);
+
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Path seg = segments.get(i);
+            Path next = segments.get(i + 1);
+
+            // sealed when the next one was created; all its records are below the next base offset
+            long nextBase = SpoolSegment.parseBaseOffset(next);
+            if (nextBase > committed) break;
+            if ((props.requireArchived() || props.payloadRefs()) && !SpoolArchiver.isArchived(seg)) break;
+
+            boolean expired = now - createdAtMillis(next) >= props.retainMs();
+            boolean overSize = props.maxBytes() > 0 && total > props.maxBytes();
+            if (!expired && !overSize) break;
+
+            long size = Files.size(seg);
+            Files.deleteIfExists(SpoolIndex.pathFor(seg));
+            Files.delete(seg);
+            total -= size;
+            deleted++;
+            log.info("spool retention: deleted {} ({} bytes, {})", seg.getFileName(), size, expired ? "expired" : "over size limit");
+        }
+
+        if (props.maxBytes() > 0 && total > props.maxBytes()) {
+            log.warn("spool retention: spool is {} bytes (limit {}) but the remaining segments are not committed by all consumers or not archived (committed offset {})",
+                    total, props.maxBytes(), committed);
+        }
+        return deleted;
+    }
+
+    private static long createdAtMillis(Path segment) throws IOException {
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            while (b.hasRemaining()) {
+                if (ch.read(b, 16 + b.position()) < 0) throw new IOException("truncated segment header: " + segment);
+            }
+            return b.getLong(0);
+        }
+    }
+}
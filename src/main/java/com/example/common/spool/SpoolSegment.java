@@ -0,0 +1,278 @@
+package com.example.common.spool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One fixed-size, memory-mapped, append-only spool segment file.
+ *
+ * File layout (big-endian):
+ *   header (32 bytes): int32 magic 'HKSG', int32 version, int64 baseOffset, int64 createdAtMillis, 8 reserved
+ *   frames, each starting at an 8-byte aligned position:
+ *     int32 frameLen      bytes after this field, excluding padding; 0 = end of written data
+ *     int32 crc32c        CRC32C of everything after this field up to the end of the body
+ *     int32 metaLen
+ *     int32 reserved
+ *     int64 offset        global record offset (record number, baseOffset for the first frame)
+ *     int64 receivedAtMillis
+ *     meta                (Payload HKP1/2/3)
+ *     body
+ *
+ * The writer fills a frame, zeroes the next frameLen slot and only then publishes frameLen with release
+ * semantics; readers load it with acquire semantics, so they never observe a half-written frame.
+ * The checksum covers what a crash or bad page can tear: a frame whose checksum matches is complete.
+ */
+final class SpoolSegment implements AutoCloseable {
+
+    static final int MAGIC = 0x484B5347; // 'H''K''S''G'
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    static final int FRAME_HEADER_BYTES = 32;
+    static final String SUFFIX = ".seg";
+
+    // aligned int access with acquire/release semantics on the mapped buffer
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final int PAGE_BYTES = 4096;
+    @SuppressWarnings("unused")
+    private static volatile int touchSink;
+
+    final Path path;
+    final long baseOffset;
+    final MappedByteBuffer buf;
+    final int capacity;
+    // end of the range known to be on disk (the header is forced by create); guarded by this
+    private int forcedTo = HEADER_BYTES;
+    private final FileChannel ch;
+
+    private SpoolSegment(Path path, long baseOffset, FileChannel ch, MappedByteBuffer buf) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.ch = ch;
+        this.buf = buf;
+        this.capacity = buf.capacity();
+    }
+
+    static SpoolSegment create(Path dir, long baseOffset, int size) throws IOException {
+        Path path = dir.resolve(fileName(baseOffset));
+        FileChannel ch = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // sparse file, reads as zeroes until written
+            ch.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.BIG_ENDIAN);
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putLong(8, baseOffset);
+            buf.putLong(16, System.currentTimeMillis());
+            buf.force(0, HEADER_BYTES);
+            return new SpoolSegment(path, baseOffset, ch, buf);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    static SpoolSegment open(Path path, boolean writable) throws IOException {
+        FileChannel ch = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) throw new IOException("bad segment size " + size + ": " + path);
+            MappedByteBuffer buf = ch.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.BIG_ENDIAN);
+
+            int magic = buf.getInt(0);
+            if (magic != MAGIC) throw new IOException("bad segment magic 0x" + Integer.toHexString(magic) + ": " + path);
+            int version = buf.getInt(4);
+            if (version != VERSION) throw new IOException("unsupported segment version " + version + ": " + path);
+            long base = buf.getLong(8);
+            if (base != parseBaseOffset(path)) throw new IOException("segment base offset " + base + " does not match file name: " + path);
+
+            return new SpoolSegment(path, base, ch, buf);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // ----------------- frames -----------------
+
+    /** frameLen at pos with acquire semantics; 0 means no (published) frame there. */
+    int frameLen(int pos) {
+        if (pos + 4 > capacity) return 0;
+        return (int) INT.getAcquire(buf, pos);
+    }
+
+    void publishFrameLen(int pos, int frameLen) {
+        INT.setRelease(buf, pos, frameLen);
+    }
+
+    int metaLen(int pos) {
+        return metaLen(buf, pos);
+    }
+
+    long offset(int pos) {
+        return offset(buf, pos);
+    }
+
+    long receivedAtMillis(int pos) {
+        return receivedAtMillis(buf, pos);
+    }
+
+    /** Writes the header fields of a frame whose meta and body are already in place. */
+    void writeFrameHeader(int pos, int frameLen, int metaLen, long offset, long receivedAtMillis) {
+        buf.putInt(pos + 8, metaLen);
+        buf.putInt(pos + 12, 0);
+        buf.putLong(pos + 16, offset);
+        buf.putLong(pos + 24, receivedAtMillis);
+        buf.putInt(pos + 4, checksum(buf, pos, frameLen));
+    }
+
+    /**
+     * True if the frame's stored CRC32C matches its bytes.
+     * frameLen must have passed frameLooksValid().
+     */
+    boolean checksumMatches(int pos, int frameLen) {
+        return checksumMatches(buf, pos, frameLen);
+    }
+
+    /** Position of the frame after the one at pos. */
+    static int next(int pos, int frameLen) {
+        return align8(pos + 4 + frameLen);
+    }
+
+    static int align8(int pos) {
+        return (pos + 7) & ~7;
+    }
+
+    /**
+     * Structural check of the frame at pos (does not decode the meta).
+     */
+    boolean frameLooksValid(int pos, int frameLen, long expectedOffset) {
+        return frameLooksValid(buf, pos, frameLen, capacity, expectedOffset);
+    }
+
+    /**
+     * Builds the record view of a (validated) frame; meta and body are read-only slices of the mapping.
+     */
+    SpoolRecord record(int pos, int frameLen) {
+        return record(buf, pos, frameLen, baseOffset, pos);
+    }
+
+    // ----------------- frame layout (any buffer holding segment bytes, e.g. archived chunks) -----------------
+
+    static int metaLen(ByteBuffer b, int at) {
+        return b.getInt(at + 8);
+    }
+
+    static long offset(ByteBuffer b, int at) {
+        return b.getLong(at + 16);
+    }
+
+    static long receivedAtMillis(ByteBuffer b, int at) {
+        return b.getLong(at + 24);
+    }
+
+    /**
+     * Structural check of the frame at index at of b, which holds segment bytes up to index limit.
+     */
+    static boolean frameLooksValid(ByteBuffer b, int at, int frameLen, int limit, long expectedOffset) {
+        if (frameLen < FRAME_HEADER_BYTES - 4) return false;
+        if ((long) at + 4 + frameLen > limit) return false;
+        int metaLen = metaLen(b, at);
+        if (metaLen <= 0 || metaLen > frameLen - (FRAME_HEADER_BYTES - 4)) return false;
+        return offset(b, at) == expectedOffset;
+    }
+
+    static boolean checksumMatches(ByteBuffer b, int at, int frameLen) {
+        return b.getInt(at + 4) == checksum(b, at, frameLen);
+    }
+
+    private static int checksum(ByteBuffer b, int at, int frameLen) {
+        CRC32C crc = new CRC32C(); // intrinsified; reads the buffer (mapping) directly, no copy
+        crc.update(b.slice(at + 8, frameLen - 4));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record view of the (validated) frame at index at of b; position is the frame's position in its segment.
+     */
+    static SpoolRecord record(ByteBuffer b, int at, int frameLen, long segment, int position) {
+        int metaLen = metaLen(b, at);
+        int bodyLen = frameLen - (FRAME_HEADER_BYTES - 4) - metaLen;
+        int metaAt = at + FRAME_HEADER_BYTES;
+        ByteBuffer meta = b.slice(metaAt, metaLen).asReadOnlyBuffer();
+        ByteBuffer body = b.slice(metaAt + metaLen, bodyLen).asReadOnlyBuffer();
+        return new SpoolRecord(offset(b, at), receivedAtMillis(b, at), meta, body, segment, position);
+    }
+
+    /**
+     * Faults in the pages of [from, to) (one read per page), so that a reader getting there later does not
+     * block on disk. Meant to run off the reading thread.
+     */
+    void touch(int from, int to) {
+        int end = Math.min(to, capacity);
+        int x = 0;
+        for (int p = Math.max(from, 0) & ~(PAGE_BYTES - 1); p < end; p += PAGE_BYTES) x += buf.get(p);
+        touchSink = x; // keeps the loads from being optimized away
+    }
+
+    /**
+     * Forces [HEADER_BYTES, to) to disk, skipping what an earlier call already forced, so a group commit
+     * only writes back the pages its batch dirtied. Failures of the underlying msync surface as IOException.
+     */
+    synchronized void force(int to) throws IOException {
+        int end = Math.min(to, capacity);
+        if (end <= forcedTo) return;
+        try {
+            buf.force(forcedTo, end - forcedTo);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        forcedTo = end;
+    }
+
+    /** Forces everything written to the segment. */
+    void force() throws IOException {
+        force(capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    // ----------------- naming -----------------
+
+    static String fileName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SUFFIX);
+    }
+
+    static boolean isSegmentFile(Path p) {
+        String n = p.getFileName().toString();
+        return n.length() == 20 + SUFFIX.length() && n.endsWith(SUFFIX);
+    }
+
+    static long parseBaseOffset(Path p) throws IOException {
+        String n = p.getFileName().toString();
+        try {
+            return Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+        } catch (RuntimeException e) {
+            throw new IOException("not a segment file: " + p);
+        }
+    }
+}
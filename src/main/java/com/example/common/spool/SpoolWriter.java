@@ -0,0 +1,306 @@
+package com.example.common.spool;
+
+import com.example.common.config.SpoolProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Append-only spool writer over fixed-size, memory-mapped segment files (see SpoolSegment for the layout).
+ *
+ * Records get consecutive global offsets; a new segment is created (named after its first offset)
+ * when the next record does not fit the active one. Appends are plain memory writes, so ingest runs
+ * at sequential-I/O speed; durability is up to the caller (flush(), or group commit on top).
+ *
+ * On open the last segment is checked with one sequential CRC32C pass and truncated after the last
+ * intact record, so a crash during an append never exposes a torn record.
+ *
+ * Every segment gets a sparse offset index (SpoolIndex), kept in memory while the segment is active
+ * and written next to it when the writer rolls or closes.
+ *
+ * One writer per directory (enforced with a file lock). Thread-safe; appends are serialized.
+ */
+public final class SpoolWriter implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SpoolWriter.class);
+
+    /**
+     * Encodes the meta at dst.position() (e.g. with Payload.PayloadV3.encodeMeta(dst, dict, ...)).
+     * dict is the active segment's dictionary; encoders that don't use one just ignore it.
+     * Must throw BufferOverflowException when dst is too small, so the writer can roll the segment.
+     */
+    @FunctionalInterface
+    public interface MetaEncoder {
+        int encode(ByteBuffer dst, SegmentDictionary dict);
+    }
+
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private SpoolSegment active;
+    private SegmentDictionary dict;
+    private SpoolIndex index;
+    private int writePos;
+    private volatile long nextOffset;
+    private volatile long bytesWritten;
+    private boolean closed;
+
+    public SpoolWriter(SpoolProps props) throws IOException {
+        Objects.requireNonNull(props, "props");
+        long size = props.segmentBytes();
+        if (size < MIN_SEGMENT_BYTES || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentBytes must be in [" + MIN_SEGMENT_BYTES + ", " + Integer.MAX_VALUE + "]: " + size);
+        }
+        this.dir = Paths.get(props.dir());
+        this.segmentBytes = (int) (size & ~7L);
+        if (props.indexInterval() <= 0) throw new IllegalArgumentException("indexInterval must be > 0: " + props.indexInterval());
+        this.indexInterval = props.indexInterval();
+
+        Files.createDirectories(dir);
+        this.lockChannel = FileChannel.open(dir.resolve(".writer.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock l = lockChannel.tryLock();
+        if (l == null) {
+            lockChannel.close();
+            throw new IOException("spool directory is locked by another writer: " + dir);
+        }
+        this.lock = l;
+
+        try {
+            List<Path> segments = listSegments(dir);
+            if (segments.isEmpty()) {
+                openNewSegment(0L);
+            } else {
+                recover(segments.get(segments.size() - 1));
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a record whose meta is already encoded.
+     *
+     * @return the record's global offset
+     */
+    public long append(ByteBuffer meta, ByteBuffer body, long receivedAtMillis) throws IOException {
+        Objects.requireNonNull(meta, "meta");
+        return append((dst, d) -> {
+            int n = meta.remaining();
+            dst.put(meta.duplicate());
+            return n;
+        }, body, receivedAtMillis);
+    }
+
+    /**
+     * Appends a record, encoding its meta straight into the mapped segment (no intermediate buffer).
+     *
+     * @return the record's global offset
+     */
+    public synchronized long append(MetaEncoder meta, ByteBuffer body, long receivedAtMillis) throws IOException {
+        Objects.requireNonNull(meta, "meta");
+        if (closed) throw new IOException("spool writer is closed");
+
+        int bodyLen = body == null ? 0 : body.remaining();
+        if (tryAppend(meta, body, bodyLen, receivedAtMillis)) return nextOffset - 1;
+
+        if (writePos == SpoolSegment.HEADER_BYTES) {
+            throw new IOException("record does not fit an empty segment (segmentBytes=" + segmentBytes + ", bodyLen=" + bodyLen + ")");
+        }
+        roll();
+        if (tryAppend(meta, body, bodyLen, receivedAtMillis)) return nextOffset - 1;
+        throw new IOException("record does not fit an empty segment (segmentBytes=" + segmentBytes + ", bodyLen=" + bodyLen + ")");
+    }
+
+    private boolean tryAppend(MetaEncoder encoder, ByteBuffer body, int bodyLen, long receivedAtMillis) {
+        SpoolSegment seg = active;
+        int pos = writePos;
+
+        // Leave room for the body, so that a successful encode always means the record is written
+        // (the encoder may have extended the dictionary).
+        int metaLimit = seg.capacity - bodyLen;
+        int metaAt = pos + SpoolSegment.FRAME_HEADER_BYTES;
+        if (metaAt >= metaLimit) return false;
+
+        ByteBuffer dst = seg.buf.duplicate();
+        dst.limit(metaLimit);
+        dst.position(metaAt);
+
+        int metaLen;
+        try {
+            metaLen = encoder.encode(dst, dict);
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        if (metaLen <= 0 || dst.position() != metaAt + metaLen) {
+            throw new IllegalStateException("meta encoder reported " + metaLen + " bytes but wrote " + (dst.position() - metaAt));
+        }
+
+        int frameLen = SpoolSegment.FRAME_HEADER_BYTES - 4 + metaLen + bodyLen;
+        if (bodyLen > 0) {
+            dst.limit(seg.capacity);
+            dst.put(body.duplicate());
+        }
+
+        seg.writeFrameHeader(pos, frameLen, metaLen, nextOffset, receivedAtMillis);
+
+        int next = SpoolSegment.next(pos, frameLen);
+        if (next + 4 <= seg.capacity) seg.buf.putInt(next, 0); // garbage from a crashed run may follow
+        seg.publishFrameLen(pos, frameLen);
+        index.maybeAdd(nextOffset, pos);
+
+        writePos = Math.min(next, seg.capacity);
+        bytesWritten += next - pos;
+        nextOffset++;
+        return true;
+    }
+
+    /**
+     * Forces the records appended to the active segment since the last flush to disk (older segments are
+     * forced when the writer rolls).
+     *
+     * @return offset (exclusive) up to which all records are now durable
+     */
+    public long flush() throws IOException {
+        SpoolSegment seg;
+        long durable;
+        int end;
+        synchronized (this) {
+            if (closed) throw new IOException("spool writer is closed");
+            seg = active;
+            durable = nextOffset;
+            end = writePos;
+        }
+        seg.force(end);
+        return durable;
+    }
+
+    /** Offset the next appended record will get. */
+    public long nextOffset() {
+        return nextOffset;
+    }
+
+    /** Total frame bytes appended by this writer instance (padding included). */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public Path dir() {
+        return dir;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            active.force(writePos);
+            writeIndex(active, index);
+            active.close();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    // ----------------- segments -----------------
+
+    private void roll() throws IOException {
+        SpoolSegment old = active;
+        old.force(writePos);
+        writeIndex(old, index);
+        openNewSegment(nextOffset);
+        old.close();
+        log.info("spool: rolled segment {} -> {}", old.path.getFileName(), active.path.getFileName());
+    }
+
+    private void openNewSegment(long baseOffset) throws IOException {
+        active = SpoolSegment.create(dir, baseOffset, segmentBytes);
+        dict = new SegmentDictionary();
+        index = new SpoolIndex(baseOffset, indexInterval);
+        writePos = SpoolSegment.HEADER_BYTES;
+        nextOffset = baseOffset;
+    }
+
+    /**
+     * Re-opens the last segment and positions after its last intact record: every frame is structurally
+     * checked and its CRC32C verified; metas are not decoded, only dictionary records are replayed to
+     * rebuild the segment dictionary.
+     */
+    private void recover(Path last) throws IOException {
+        SpoolSegment seg = SpoolSegment.open(last, true);
+        SegmentDictionary d = new SegmentDictionary();
+        SpoolIndex idx = new SpoolIndex(seg.baseOffset, indexInterval);
+        long offset = seg.baseOffset;
+        int pos = SpoolSegment.HEADER_BYTES;
+
+        while (true) {
+            int frameLen = seg.frameLen(pos);
+            if (frameLen == 0) break;
+            if (!seg.frameLooksValid(pos, frameLen, offset) || !recordIntact(seg, pos, frameLen, d)) {
+                log.warn("spool: truncating {} at position {} (offset {}): invalid record", last.getFileName(), pos, offset);
+                seg.publishFrameLen(pos, 0);
+                seg.force();
+                break;
+            }
+            idx.maybeAdd(offset, pos);
+            offset++;
+            pos = SpoolSegment.next(pos, frameLen);
+        }
+
+        active = seg;
+        dict = d;
+        index = idx;
+        writePos = Math.min(pos, seg.capacity);
+        nextOffset = offset;
+        log.info("spool: recovered {} nextOffset={} position={}", last.getFileName(), nextOffset, writePos);
+    }
+
+    private static boolean recordIntact(SpoolSegment seg, int pos, int frameLen, SegmentDictionary d) {
+        if (!seg.checksumMatches(pos, frameLen)) return false;
+
+        SpoolRecord r = seg.record(pos, frameLen);
+        if (!Payload.PayloadV3.usesSegmentDictionary(r.meta())) return true;
+        try {
+            Payload.PayloadV3.replay(r.meta(), d);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            d.rollback();
+            return false;
+        }
+    }
+
+    /** The index file is only an accelerator (readers rebuild it), so failing to write it is not fatal. */
+    private static void writeIndex(SpoolSegment seg, SpoolIndex idx) {
+        try {
+            idx.write(SpoolIndex.pathFor(seg.path));
+        } catch (IOException e) {
+            log.warn("spool: could not write index for {}", seg.path.getFileName(), e);
+        }
+    }
+
+    static List<Path> listSegments(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(SpoolSegment::isSegmentFile).sorted().toList();
+        }
+    }
+}
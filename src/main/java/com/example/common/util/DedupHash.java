@@ -0,0 +1,57 @@
+package com.example.common.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How dedup keys (DedupDoc.hash, EventDoc.hash) are computed from an event body.
+ *
+ * The algorithm is recorded in the key itself: SHA-256 keys stay the bare 24 hex chars they always were,
+ * other algorithms prefix theirs (e.g. "m3:..."). Keys of different algorithms never compare equal, so
+ * an app can switch algorithms with old and new keys side by side; at worst a duplicate arriving across
+ * the switch is not recognized.
+ */
+public interface DedupHash {
+    /** Truncated SHA-256 (the original keys). */
+    DedupHash SHA256 = new DedupHash() {
+        @Override
+        public String name() {
+            return "sha256";
+        }
+
+        @Override
+        public String hash(ByteBuffer body) {
+            return Sha.sha256Hex24(body);
+        }
+    };
+
+    /** MurmurHash3 x64 128-bit: an order of magnitude cheaper than SHA-256, not collision resistant against attackers. */
+    DedupHash MURMUR3_128 = new DedupHash() {
+        @Override
+        public String name() {
+            return "murmur3";
+        }
+
+        @Override
+        public String hash(ByteBuffer body) {
+            return "m3:" + Sha.hex(Murmur3.hash128(body));
+        }
+    };
+
+    /** Name used in configuration (AppDoc.dedupHash). */
+    String name();
+
+    /** Dedup key of the body's remaining bytes; its position is not changed. */
+    String hash(ByteBuffer body);
+
+    /** The algorithm configured by name; null or empty means SHA-256. */
+    static DedupHash named(String name) {
+        if (name == null || name.isEmpty() || SHA256.name().equals(name)) return SHA256;
+        if (MURMUR3_128.name().equals(name)) return MURMUR3_128;
+        throw new IllegalArgumentException("unknown dedup hash: " + name);
+    }
+
+    /** The algorithm a stored key was computed with. */
+    static DedupHash of(String key) {
+        return key != null && key.startsWith("m3:") ? MURMUR3_128 : SHA256;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.common.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MurmurHash3 x64 128-bit (Austin Appleby's reference algorithm, seed 0). Fast, well distributed and
+ * not cryptographic: fine for dedup keys, not for anything an attacker may want to collide.
+ */
+public final class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+    }
+
+    /** 16-byte hash of the buffer's remaining bytes (h1 then h2, little-endian); its position is not changed. */
+    @SuppressWarnings("fallthrough") // the tail switch falls through on purpose, as in the reference
+    public static byte[] hash128(ByteBuffer data) {
+        ByteBuffer b = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int len = b.remaining();
+        int blocks = len >>> 4;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = b.getLong(i << 4);
+            long k2 = b.getLong((i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+            case 15: k2 ^= (long) (b.get(tail + 14) & 0xff) << 48;
+            case 14: k2 ^= (long) (b.get(tail + 13) & 0xff) << 40;
+            case 13: k2 ^= (long) (b.get(tail + 12) & 0xff) << 32;
+            case 12: k2 ^= (long) (b.get(tail + 11) & 0xff) << 24;
+            case 11: k2 ^= (long) (b.get(tail + 10) & 0xff) << 16;
+            case 10: k2 ^= (long) (b.get(tail + 9) & 0xff) << 8;
+            case 9:
+                k2 ^= b.get(tail + 8) & 0xff;
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= (long) (b.get(tail + 7) & 0xff) << 56;
+            case 7: k1 ^= (long) (b.get(tail + 6) & 0xff) << 48;
+            case 6: k1 ^= (long) (b.get(tail + 5) & 0xff) << 40;
+            case 5: k1 ^= (long) (b.get(tail + 4) & 0xff) << 32;
+            case 4: k1 ^= (long) (b.get(tail + 3) & 0xff) << 24;
+            case 3: k1 ^= (long) (b.get(tail + 2) & 0xff) << 16;
+            case 2: k1 ^= (long) (b.get(tail + 1) & 0xff) << 8;
+            case 1:
+                k1 ^= b.get(tail) & 0xff;
+                h1 ^= mixK1(k1);
+            default:
+                break;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        return ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(h1).putLong(h2).array();
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
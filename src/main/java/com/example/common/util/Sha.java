@@ -1,21 +1,138 @@
 package com.example.common.util;
 
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Sha {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // one-shot hashing is synchronous, so a digest per thread can be reused
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(Sha::newSha256);
+
     public static String sha256Hex(byte[] data) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder(digest.length * 2);
-            for (byte b : digest) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return hex(sha256(data));
     }
 
     public static String sha256Hex24(byte[] data) {
-        return sha256Hex(data).substring(0, 24);
+        return hex(sha256(data), 12);
+    }
+
+    /** Hash of the buffer's remaining bytes; its position is not changed. */
+    public static String sha256Hex24(ByteBuffer data) {
+        MessageDigest md = SHA256.get();
+        md.update(data.duplicate());
+        return hex(md.digest(), 12);
+    }
+
+    public static byte[] sha256(byte[] data) {
+        return SHA256.get().digest(data);
+    }
+
+    public static String hex(byte[] digest) {
+        return hex(digest, digest.length);
+    }
+
+    /** Lowercase hex of the first n bytes (sha256Hex24 is n = 12). */
+    public static String hex(byte[] digest, int n) {
+        char[] out = new char[n * 2];
+        for (int i = 0; i < n; i++) {
+            int b = digest[i] & 0xff;
+            out[2 * i] = HEX[b >>> 4];
+            out[2 * i + 1] = HEX[b & 0x0f];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Incremental SHA-256 for bodies that arrive in pieces: feed it the DataBuffers as they stream
+     * through (see hashing()), plus the canonical meta fields, and finish once. Finishing resets it,
+     * so one instance can be reused for the next body. Not thread-safe, but it may be fed from
+     * different threads as long as the updates happen one after the other (as signals of one Flux do).
+     */
+    public static final class Sha256 {
+        private final MessageDigest md = newSha256();
+        private long bytes;
+
+        public Sha256 update(byte[] data) {
+            return update(data, 0, data.length);
+        }
+
+        public Sha256 update(byte[] data, int off, int len) {
+            md.update(data, off, len);
+            bytes += len;
+            return this;
+        }
+
+        /** Hashes the buffer's remaining bytes without moving its position. */
+        public Sha256 update(ByteBuffer data) {
+            bytes += data.remaining();
+            md.update(data.duplicate());
+            return this;
+        }
+
+        /** Hashes the buffer's readable bytes without moving its read position or copying them. */
+        public Sha256 update(DataBuffer data) {
+            try (DataBuffer.ByteBufferIterator it = data.readableByteBuffers()) {
+                while (it.hasNext()) update(it.next());
+            }
+            return this;
+        }
+
+        /**
+         * Hashes one canonical meta field (e.g. method, host, path) as its length then its UTF-8 bytes,
+         * so that adjacent fields cannot run into each other; null hashes differently from "".
+         */
+        public Sha256 field(String value) {
+            if (value == null) {
+                md.update((byte) 0xff);
+                return this;
+            }
+            byte[] b = value.getBytes(StandardCharsets.UTF_8);
+            md.update((byte) (b.length >>> 24));
+            md.update((byte) (b.length >>> 16));
+            md.update((byte) (b.length >>> 8));
+            md.update((byte) b.length);
+            md.update(b);
+            return this;
+        }
+
+        /** Body bytes hashed since the last finish. */
+        public long bytes() {
+            return bytes;
+        }
+
+        public byte[] finish() {
+            bytes = 0;
+            return md.digest();
+        }
+
+        public String finishHex() {
+            return hex(finish());
+        }
+
+        public String finishHex24() {
+            return hex(finish(), 12);
+        }
+    }
+
+    /**
+     * Passes body through unchanged, hashing every buffer as it goes by, so the body is hashed once,
+     * in flight, without being collected first. Finish sha after body completes.
+     */
+    public static Flux<DataBuffer> hashing(Flux<DataBuffer> body, Sha256 sha) {
+        return body.doOnNext(sha::update);
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
@@ -0,0 +1,199 @@
+package com.example.common.spool;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * HKP3 with a segment dictionary: the encoder and every reader must build the same table, whatever the
+ * records contain, since the table itself is never written.
+ */
+class PayloadV3SegmentDictionaryTest {
+
+    @Test
+    void repeatedLiteralsAreReferencedAndRoundTrip() throws IOException {
+        SegmentDictionary enc = new SegmentDictionary();
+        List<HttpHeaders> headers = new ArrayList<>();
+        List<ByteBuffer> metas = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            HttpHeaders h = new HttpHeaders();
+            h.add("X-Tenant-Identifier", "tenant-0123456789");
+            h.add("X-Request-Id", "request-" + i + "-abcdefgh");
+            h.add("X-Short", "tiny");
+            headers.add(h);
+            metas.add(encode(enc, h));
+        }
+
+        // the first record carries the literals, later ones refer to them
+        assertTrue(metas.get(1).remaining() < metas.get(0).remaining());
+        assertEquals(metas.get(1).remaining(), metas.get(4).remaining());
+
+        SegmentDictionary dec = new SegmentDictionary();
+        for (int i = 0; i < metas.size(); i++) {
+            assertDecodes(metas.get(i), dec, headers.get(i));
+        }
+        assertSameTable(enc, dec);
+    }
+
+    @Test
+    void entryLengthLimitsKeepEncoderAndDecoderInStep() throws IOException {
+        String tooShort = "x".repeat(SegmentDictionary.MIN_ENTRY_LEN - 1);
+        String longest = "y".repeat(SegmentDictionary.MAX_ENTRY_LEN);
+        String tooLong = "z".repeat(SegmentDictionary.MAX_ENTRY_LEN + 1);
+
+        SegmentDictionary enc = new SegmentDictionary();
+        SegmentDictionary dec = new SegmentDictionary();
+        for (int i = 0; i < 3; i++) {
+            HttpHeaders h = new HttpHeaders();
+            h.add("X-Values-Header", tooShort);
+            h.add("X-Values-Header", longest);
+            h.add("X-Values-Header", tooLong);
+            assertDecodes(encode(enc, h), dec, h);
+        }
+
+        assertEquals(1, enc.valueCount()); // only the value of allowed length
+        assertSameTable(enc, dec);
+        assertTrue(dec.valueIndex(longest) >= 0);
+        assertEquals(-1, dec.valueIndex(tooShort));
+        assertEquals(-1, dec.valueIndex(tooLong));
+    }
+
+    @Test
+    void fullTableKeepsEncoderAndDecoderInStep() throws IOException {
+        SegmentDictionary enc = new SegmentDictionary();
+        SegmentDictionary dec = new SegmentDictionary();
+
+        // unique values until the entry limit is reached, then some more that no longer fit
+        int records = SegmentDictionary.MAX_ENTRIES / 50 + 5;
+        List<ByteBuffer> metas = new ArrayList<>();
+        List<HttpHeaders> headers = new ArrayList<>();
+        for (int r = 0; r < records; r++) {
+            HttpHeaders h = new HttpHeaders();
+            for (int v = 0; v < 50; v++) h.add("X-Many-Values", "value-" + r + "-" + v + "-padding");
+            headers.add(h);
+            metas.add(encode(enc, h));
+        }
+        assertTrue(enc.isFull());
+        assertEquals(SegmentDictionary.MAX_ENTRIES, enc.nameCount() + enc.valueCount());
+
+        for (int r = 0; r < records; r++) assertDecodes(metas.get(r), dec, headers.get(r));
+        assertSameTable(enc, dec);
+
+        // literals that repeat once the table is full are written in full and still decode
+        HttpHeaders again = headers.get(records - 1);
+        assertDecodes(encode(enc, again), dec, again);
+    }
+
+    @Test
+    void charLimitKeepsEncoderAndDecoderInStep() throws IOException {
+        SegmentDictionary enc = new SegmentDictionary();
+        SegmentDictionary dec = new SegmentDictionary();
+
+        int perRecord = 16;
+        int records = (int) (SegmentDictionary.MAX_CHARS / (SegmentDictionary.MAX_ENTRY_LEN * perRecord)) + 2;
+        for (int r = 0; r < records; r++) {
+            HttpHeaders h = new HttpHeaders();
+            for (int v = 0; v < perRecord; v++) {
+                String prefix = r + "-" + v + "-";
+                h.add("X-Big-Values", prefix + "b".repeat(SegmentDictionary.MAX_ENTRY_LEN - prefix.length()));
+            }
+            assertDecodes(encode(enc, h), dec, h);
+        }
+
+        // the table stopped growing on its char budget, long before the entry limit
+        assertTrue(enc.valueCount() < records * perRecord);
+        assertTrue(enc.nameCount() + enc.valueCount() < SegmentDictionary.MAX_ENTRIES);
+        long chars = 0;
+        for (int i = 0; i < enc.nameCount(); i++) chars += enc.name(i).length();
+        for (int i = 0; i < enc.valueCount(); i++) chars += enc.value(i).length();
+        assertTrue(chars <= SegmentDictionary.MAX_CHARS);
+        assertSameTable(enc, dec);
+    }
+
+    @Test
+    void recordsDecodeInAnyOrderAfterReplay() throws IOException {
+        SegmentDictionary enc = new SegmentDictionary();
+        List<ByteBuffer> metas = new ArrayList<>();
+        List<HttpHeaders> headers = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            HttpHeaders h = new HttpHeaders();
+            h.add("X-Tenant-Identifier", "tenant-" + (i % 4) + "-abcdefgh");
+            h.add("X-Signature-Header", "signature-" + i + "-0123456789");
+            h.add("Content-Type", "application/json");
+            headers.add(h);
+            metas.add(encode(enc, h));
+        }
+        // a record written without the dictionary in the middle of the segment
+        HttpHeaders plain = new HttpHeaders();
+        plain.add("X-Tenant-Identifier", "tenant-plain-abcdefgh");
+        headers.add(plain);
+        metas.add(encode(null, plain));
+
+        SegmentDictionary replayed = new SegmentDictionary();
+        for (ByteBuffer m : metas) {
+            assertEquals(m.remaining(), Payload.PayloadV3.replay(m, replayed));
+        }
+        assertSameTable(enc, replayed);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < metas.size(); i++) order.add(i);
+        Collections.shuffle(order, new Random(7));
+        for (int i : order) assertDecodes(metas.get(i), replayed, headers.get(i));
+        assertSameTable(enc, replayed);
+    }
+
+    @Test
+    void usesSegmentDictionaryReflectsTheFlag() {
+        HttpHeaders h = new HttpHeaders();
+        h.add("X-Tenant-Identifier", "tenant-0123456789");
+        assertTrue(Payload.PayloadV3.usesSegmentDictionary(encode(new SegmentDictionary(), h)));
+        assertFalse(Payload.PayloadV3.usesSegmentDictionary(encode(null, h)));
+    }
+
+    // ----------------- helpers -----------------
+
+    private static ByteBuffer encode(SegmentDictionary dict, HttpHeaders headers) {
+        return Payload.PayloadV3.encodeMeta(dict, "POST", "https", new byte[]{10, 0, 0, 1},
+                "hooks.example.com", "/v1/hooks/abc", "a=1&b=2", "machine-1", headers, null, 42);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void assertDecodes(ByteBuffer meta, SegmentDictionary dict, HttpHeaders expected) throws IOException {
+        Map<String, Object> m = Payload.PayloadV3.decodeMeta(meta, dict);
+        assertEquals("HKP3", m.get("magic"));
+        assertEquals("POST", m.get("method"));
+        assertEquals("https", m.get("scheme"));
+        assertEquals("10.0.0.1", m.get("remote_ip"));
+        assertEquals("hooks.example.com", m.get("host"));
+        assertEquals("/v1/hooks/abc", m.get("path"));
+        assertEquals("a=1&b=2", m.get("query"));
+        assertEquals("machine-1", m.get("machine"));
+        assertEquals(42L, m.get("body_len"));
+
+        Map<String, Object> headers = (Map<String, Object>) m.get("headers");
+        assertEquals(expected.size(), headers.size());
+        expected.forEach((name, values) -> {
+            Object actual = headers.get(name.toLowerCase(Locale.ROOT));
+            assertEquals(values.size() == 1 ? values.get(0) : values, actual, name);
+        });
+    }
+
+    private static void assertSameTable(SegmentDictionary expected, SegmentDictionary actual) {
+        assertEquals(expected.nameCount(), actual.nameCount());
+        assertEquals(expected.valueCount(), actual.valueCount());
+        for (int i = 0; i < expected.nameCount(); i++) assertEquals(expected.name(i), actual.name(i));
+        for (int i = 0; i < expected.valueCount(); i++) assertEquals(expected.value(i), actual.value(i));
+    }
+}